@@ -0,0 +1,126 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Synthetic corpus of PNG files for the benchmarks. The images contain a
+ * mix of gradients and noise, so they are neither trivially compressible
+ * nor incompressible. The files are spread over subdirectories of 100 files
+ * each, like a typical web site. The same seed always produces the same
+ * corpus.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Corpus extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Creates a new corpus in a new temporary directory.
+    *
+    * @param count
+    *    the number of PNG files to create.
+    *
+    * @param size
+    *    the width and height of each image, in pixels.
+    *
+    * @return
+    *    the directory holding the corpus, never <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static File create(int count, int size) throws IOException {
+      File   dir = createTempDir("corpus");
+      Random rnd = new Random(count * 31L + size);
+      for (int i = 0; i < count; i++) {
+         File subdir = new File(dir, "d" + (i / 100));
+         subdir.mkdir();
+
+         BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+         int noise = 1 + rnd.nextInt(64);
+         for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+               int r = (x * 255 / size + rnd.nextInt(noise)) & 0xff;
+               int g = (y * 255 / size + rnd.nextInt(noise)) & 0xff;
+               int b = ((x + y) * 127 / size) & 0xff;
+               image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+         }
+         ImageIO.write(image, "png", new File(subdir, "image" + i + ".png"));
+      }
+      return dir;
+   }
+
+   /**
+    * Creates a new, empty temporary directory.
+    *
+    * @param prefix
+    *    the prefix for the name of the directory, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    the new directory, never <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static File createTempDir(String prefix) throws IOException {
+      File dir = File.createTempFile(prefix, "");
+      if (! dir.delete() || ! dir.mkdir()) {
+         throw new IOException("Unable to create temporary directory \"" + dir + "\".");
+      }
+      return dir;
+   }
+
+   /**
+    * Deletes the specified file or directory, recursively.
+    *
+    * @param file
+    *    the file or directory to delete, can be <code>null</code>.
+    */
+   static void delete(File file) {
+      if (file == null) {
+         return;
+      }
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            delete(child);
+         }
+      }
+      file.delete();
+   }
+
+   /**
+    * Returns the stand-in for the OptiPNG command. Its location is passed
+    * by the build file, through the <code>optipng.stub</code> system
+    * property.
+    *
+    * @return
+    *    the path to the stand-in command, never <code>null</code>.
+    */
+   static String stubCommand() {
+      return System.getProperty("optipng.stub", "bench/optipng-stub");
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Corpus</code>. This constructor is private since
+    * no instances of this class should be created.
+    */
+   private Corpus() {
+      // empty
+   }
+}
@@ -0,0 +1,58 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.taskdefs.Execute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the overhead of executing a command for a single file: the
+ * threads that drain the output of the command and the spawning of the
+ * process itself, using the stand-in OptiPNG command.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProcessBenchmark {
+
+   /**
+    * Typical output of the OptiPNG command for a single file.
+    */
+   private static final byte[] OUTPUT = "** Processing: image.png\nOutput file size = 1234 bytes\n".getBytes();
+
+   /**
+    * Drains the output and error stream of a (simulated) child process
+    * through a {@link Buffer}, like the task does for each command.
+    */
+   @Benchmark
+   public String buffer() {
+      Buffer buffer = new Buffer();
+      buffer.setProcessOutputStream(new ByteArrayInputStream(OUTPUT));
+      buffer.setProcessErrorStream(new ByteArrayInputStream(new byte[0]));
+      buffer.start();
+      buffer.stop();
+      return buffer.getOutString();
+   }
+
+   /**
+    * Executes the stand-in OptiPNG command, like the task does to
+    * determine the version.
+    */
+   @Benchmark
+   public int spawn() throws IOException {
+      Buffer  buffer = new Buffer();
+      Execute execute = new Execute(buffer);
+      execute.setCommandline(new String[] { Corpus.stubCommand(), "-version" });
+      return execute.execute();
+   }
+}
@@ -0,0 +1,92 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the selection phase of the OptiPNG task, i.e. the work done
+ * for each file before any command is executed: the directory scan, the
+ * file type check and the determination of the output file name.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SelectionBenchmark {
+
+   /**
+    * The number of files in the corpus.
+    */
+   @Param({ "1000" })
+   public int files;
+
+   /**
+    * The directory holding the corpus.
+    */
+   private File _dir;
+
+   /**
+    * The names of the files in the corpus, relative to {@link #_dir}.
+    */
+   private String[] _names;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      _dir   = Corpus.create(files, 8);
+      _names = scan();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      Corpus.delete(_dir);
+   }
+
+   /**
+    * Scans the corpus directory, like the task does.
+    */
+   @Benchmark
+   public String[] scan() {
+      DirectoryScanner scanner = new DirectoryScanner();
+      scanner.setBasedir(_dir);
+      scanner.scan();
+      return scanner.getIncludedFiles();
+   }
+
+   /**
+    * Checks the file type of each file by reading its header, like the task
+    * does.
+    */
+   @Benchmark
+   public void sniff(Blackhole blackhole) throws IOException {
+      byte[] bytes = new byte[ImageFormat.HEADER_LENGTH];
+      for (String name : _names) {
+         blackhole.consume(ImageFormat.detect(bytes, ImageFormat.readHeader(new File(_dir, name), bytes)));
+      }
+   }
+
+   /**
+    * Determines the output file name for each PNG file, like the task does.
+    */
+   @Benchmark
+   public void rewritePath(Blackhole blackhole) {
+      for (String name : _names) {
+         blackhole.consume(name.regionMatches(true, name.length() - 4, ".png", 0, 4) ? name.substring(0, name.length() - 4) + ".png" : name);
+      }
+   }
+}
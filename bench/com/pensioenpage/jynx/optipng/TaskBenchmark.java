@@ -0,0 +1,115 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End-to-end benchmark of the OptiPNG task over a synthetic corpus, using
+ * the stand-in OptiPNG command. Each invocation processes the complete
+ * corpus, so the score divided by the number of files is the per-file
+ * overhead of the task.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TaskBenchmark {
+
+   /**
+    * The number of files in the corpus.
+    */
+   @Param({ "200" })
+   public int files;
+
+   /**
+    * The width and height of each image, in pixels.
+    */
+   @Param({ "64" })
+   public int size;
+
+   /**
+    * The number of worker threads.
+    */
+   @Param({ "1", "4" })
+   public int threads;
+
+   /**
+    * The maximum number of files per command invocation.
+    */
+   @Param({ "1", "16" })
+   public int batchSize;
+
+   /**
+    * The engine: <code>"optipng"</code> for the stand-in command, or
+    * <code>"java"</code>.
+    */
+   @Param({ "optipng" })
+   public String engine;
+
+   /**
+    * The directory holding the corpus.
+    */
+   private File _sourceDir;
+
+   /**
+    * The directory to write to.
+    */
+   private File _destDir;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      _sourceDir = Corpus.create(files, size);
+   }
+
+   @Setup(Level.Invocation)
+   public void createDestDir() throws IOException {
+      _destDir = Corpus.createTempDir("out");
+      for (File subdir : _sourceDir.listFiles()) {
+         new File(_destDir, subdir.getName()).mkdir();
+      }
+   }
+
+   @TearDown(Level.Invocation)
+   public void deleteDestDir() {
+      Corpus.delete(_destDir);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      Corpus.delete(_sourceDir);
+   }
+
+   /**
+    * Optimizes the complete corpus.
+    */
+   @Benchmark
+   public void execute() {
+      Project project = new Project();
+      project.init();
+
+      OptiPNGTask task = new OptiPNGTask();
+      task.setProject(project);
+      task.setDir(_sourceDir);
+      task.setToDir(_destDir);
+      task.setEngine(engine);
+      task.setCommand(Corpus.stubCommand());
+      task.setThreads(threads);
+      task.setBatchSize(batchSize);
+      task.execute();
+   }
+}
@@ -0,0 +1,280 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.tools.ant.Project.MSG_VERBOSE;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.isEmpty;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.quote;
+
+/**
+ * Processing of many files in a single invocation of the OptiPNG command,
+ * see {@link OptiPNGTask#setBatchSize(int)}. Files that cannot be processed
+ * as part of a batch are processed one by one by the
+ * {@link FileProcessor}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class BatchProcessor extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Divides the selected files into batches, each to be processed by a
+    * single invocation of the OptiPNG command. Files that are written to the
+    * same output directory are grouped together, since OptiPNG supports only
+    * a single output directory per invocation. Each batch contains at most
+    * <code>batchSize</code> files and the resulting command line never
+    * exceeds {@link OptiPNGTask#MAX_COMMAND_LENGTH} characters.
+    *
+    * <p>Files that are renamed while processing (e.g. from
+    * <code>"a.PNG"</code> to <code>"a.png"</code>) cannot be processed as part
+    * of a batch, so these end up in a unit of work of their own.
+    *
+    * @param selected
+    *    the selected files, cannot be <code>null</code>.
+    *
+    * @param command
+    *    the OptiPNG command to execute, cannot be <code>null</code>.
+    *
+    * @param batchSize
+    *    the maximum number of files in a batch, see
+    *    {@link OptiPNGTask#setBatchSize(int)}.
+    *
+    * @return
+    *    the units of work, never <code>null</code>.
+    */
+   static List<List<FileResult>> createBatches(List<FileResult> selected, String command, int batchSize) {
+
+      // Group the files by output directory, retaining the original order
+      Map<File,List<FileResult>> groups = new LinkedHashMap<File,List<FileResult>>();
+      List<List<FileResult>>    batches = new ArrayList<List<FileResult>>();
+      for (FileResult result : selected) {
+         File  inFile = result.getInFile();
+         File outFile = result.getOutFile();
+         if (! inFile.getName().equals(outFile.getName())) {
+            List<FileResult> batch = new ArrayList<FileResult>(1);
+            batch.add(result);
+            batches.add(batch);
+         } else {
+            File outDir = outFile.getParentFile();
+            List<FileResult> group = groups.get(outDir);
+            if (group == null) {
+               group = new ArrayList<FileResult>();
+               groups.put(outDir, group);
+            }
+            group.add(result);
+         }
+      }
+
+      // Split each group into batches
+      for (Map.Entry<File,List<FileResult>> entry : groups.entrySet()) {
+         int baseLength = command.length() + entry.getKey().getPath().length() + 32;
+         List<FileResult> batch = new ArrayList<FileResult>();
+         int length = baseLength;
+         for (FileResult result : entry.getValue()) {
+            int argLength = result.getInFile().getPath().length() + 1;
+            if (batch.size() > 0 && (batch.size() >= batchSize || length + argLength > OptiPNGTask.MAX_COMMAND_LENGTH)) {
+               batches.add(batch);
+               batch  = new ArrayList<FileResult>();
+               length = baseLength;
+            }
+            batch.add(result);
+            length += argLength;
+         }
+         if (batch.size() > 0) {
+            batches.add(batch);
+         }
+      }
+
+      return batches;
+   }
+
+   /**
+    * Processes a batch of input files using a single invocation of the
+    * OptiPNG command. The output of the command is parsed to determine the
+    * result for each individual file. Each file that is not successfully
+    * processed as part of the batch, is subsequently processed on its own,
+    * see {@link FileProcessor#process(FileResult,Execution)}.
+    *
+    * <p>All files in the batch must have the same output directory and the
+    * name of each output file must match the name of the input file.
+    *
+    * <p>This method is called from the worker threads, so it must not change
+    * any shared state other than through the thread-safe stores in the
+    * execution.
+    *
+    * @param batch
+    *    the files to process, cannot be <code>null</code> and must contain
+    *    at least 2 elements.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    */
+   static void process(List<FileResult> batch, Execution execution) {
+
+      long batchStart = System.currentTimeMillis();
+
+      // Take each file from the cache, if possible
+      if (execution._cache != null) {
+         List<FileResult> misses = new ArrayList<FileResult>(batch.size());
+         for (FileResult result : batch) {
+            if (! FileProcessor.restoreFromCache(result, execution, batchStart)) {
+               misses.add(result);
+            }
+         }
+         if (misses.isEmpty()) {
+            return;
+         }
+         batch = misses;
+      }
+
+      // Once the budget is exhausted, the files are copied one by one
+      if (execution.isOverBudget()) {
+         for (FileResult result : batch) {
+            FileProcessor.process(result, execution);
+         }
+         return;
+      }
+
+      // Files that are predicted to save too little are copied one by one
+      if (execution._minSavings > 0.0) {
+         List<FileResult> remaining = new ArrayList<FileResult>(batch.size());
+         for (FileResult result : batch) {
+            if (FileProcessor.isLowYield(result, execution)) {
+               FileProcessor.process(result, execution);
+            } else {
+               remaining.add(result);
+            }
+         }
+         if (remaining.isEmpty()) {
+            return;
+         }
+         batch = remaining;
+      }
+
+      // The output is written to a temporary directory next to the output
+      // files, from which each complete output file is moved into place
+      File tempDir;
+      try {
+         tempDir = Copier.createTempDir(batch.get(0).getOutFile().getAbsoluteFile().getParentFile());
+      } catch (IOException cause) {
+         tempDir = null;
+      }
+
+      // Build the command line
+      CommandOptimizer optimizer = (CommandOptimizer) execution._optimizer;
+      List<File>         inFiles = new ArrayList<File>(batch.size());
+      for (FileResult result : batch) {
+         inFiles.add(result.getInFile());
+      }
+      String[] cmdline = (tempDir == null) ? null : optimizer.getBatchCommandLine(execution._command, execution._arguments, inFiles, tempDir);
+
+      // Process the files one by one if batches are not supported
+      if (cmdline == null) {
+         if (tempDir != null) {
+            tempDir.delete();
+         }
+         for (FileResult result : batch) {
+            FileProcessor.process(result, execution);
+         }
+         return;
+      }
+
+      // Prepare for the command execution, the time-out is the sum of the
+      // time-outs of the files in the batch
+      long timeOut = 0L;
+      long    cost = 0L;
+      for (FileResult result : batch) {
+         long fileTimeOut = execution._timeOuts.timeOutFor(result.getCost());
+         timeOut = (timeOut < 0L || fileTimeOut < 1L) ? -1L : timeOut + fileTimeOut;
+         cost   += result.getCost();
+      }
+      timeOut = execution.capToBudget(timeOut);
+      Buffer              buffer = new Buffer();
+      ExecuteWatchdog   watchdog = (timeOut > 0L) ? new ScheduledWatchdog(timeOut) : null;
+      Execute            execute = new Execute(buffer, watchdog);
+      execute.setAntRun(execution._project);
+      execute.setCommandline(cmdline);
+
+      // Execute the command
+      boolean batchFailure;
+      try {
+         execute.execute();
+         batchFailure = execute.isFailure();
+      } catch (IOException cause) {
+         batchFailure = true;
+      }
+      batchFailure = batchFailure ? true : ! isEmpty(buffer.getErrString());
+
+      // Attribute the output to the individual files
+      Map<String,String> sections = optimizer.splitBatchOutput(buffer.getOutString(), buffer.getErrString());
+      long batchDuration = System.currentTimeMillis() - batchStart;
+      if (! batchFailure) {
+         execution._timeOuts.observe(cost, batchDuration);
+      } else if (watchdog != null && watchdog.killedProcess() && ! execution.isOverBudget()) {
+         execution._timeOuts.observeTimeOut(cost, batchDuration);
+      }
+      for (FileResult result : batch) {
+         String  section = sections.get(result.getInFile().getPath());
+         File    outFile = result.getOutFile();
+         File   tempFile = new File(tempDir, outFile.getName());
+         boolean success = section != null
+                        && optimizer.checkBatchResult(section, batchFailure)
+                        && tempFile.exists()
+                        && tempFile.length() > 0L;
+         boolean    kept = false;
+         if (success) {
+            try {
+               kept = ! FileProcessor.install(result, tempFile, execution);
+            } catch (IOException cause) {
+               success = false;
+            }
+         }
+         tempFile.delete();
+
+         if (success && kept) {
+            FileProcessor.keptOriginal(result, execution);
+         } else if (success) {
+            result.log("Optimized " + quote(result.getFileName()) + " in a batch of " + batch.size() + " file(s) that took " + batchDuration + " ms.", MSG_VERBOSE);
+            FileProcessor.optimized(result, execution);
+
+         // Retry each failed file on its own
+         } else {
+            result.log("Optimizing " + quote(result.getFileName()) + " in a batch failed, retrying on its own.", MSG_VERBOSE);
+            FileProcessor.process(result, execution);
+         }
+      }
+
+      // Remove anything else the command left behind
+      File[] leftovers = tempDir.listFiles();
+      if (leftovers != null) {
+         for (File leftover : leftovers) {
+            leftover.delete();
+         }
+      }
+      tempDir.delete();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>BatchProcessor</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private BatchProcessor() {
+      // empty
+   }
+}
@@ -0,0 +1,254 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.Project;
+import static org.apache.tools.ant.Project.MSG_VERBOSE;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.isEmpty;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.quote;
+
+/**
+ * Optimization of a single file in best-of mode, where several candidates
+ * are raced against each other and the smallest result is kept, see
+ * {@link OptiPNGTask#createCandidate()}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class BestOfOptimization extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Optimizes a single file by letting all candidates optimize it
+    * concurrently, each into its own temporary file. The smallest valid
+    * result is then moved to the output file; the other temporary files are
+    * deleted. Since the size of a result is only known once a candidate has
+    * finished, all candidates always run to completion.
+    *
+    * <p>Each candidate that executes a command has a watchdog, which kills
+    * the command when it exceeds the time-out, or when the current thread is
+    * interrupted; that candidate is then left out. Candidates that run
+    * in-process cannot be killed; on interruption they are only asked to
+    * stop, which they may ignore.
+    *
+    * @param result
+    *    the result for the file, used for logging, cannot be
+    *    <code>null</code>.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>;
+    *    the contenders and the race pool must be set.
+    *
+    * @return
+    *    <code>null</code> on success, or the error output on failure (can be
+    *    an empty string).
+    */
+   static String optimize(FileResult result, File inFile, File outFile, Execution execution) {
+
+      final Project              project = execution._project;
+      List<Contender>       contenders = execution._contenders;
+      int                        count = contenders.size();
+      String                inFileName = result.getFileName();
+      File[]                     temps = new File[count];
+      ExecuteWatchdog[]      watchdogs = new ExecuteWatchdog[count];
+      Map<Future<String>,Integer> indexes = new HashMap<Future<String>,Integer>();
+      CompletionService<String> completion = new ExecutorCompletionService<String>(execution._racePool);
+      try {
+
+         // Start all candidates, each writing to a temporary file next to
+         // the output file, so that the winner can be moved atomically
+         for (int i = 0; i < count; i++) {
+            final Contender contender = contenders.get(i);
+            final File             in = inFile;
+            final File            out = Copier.createTempFile(outFile);
+            final ExecuteWatchdog watchdog = (contender._optimizer instanceof CommandOptimizer)
+                                           ? new ScheduledWatchdog(execution.timeOutFor(result))
+                                           : null;
+            temps[i]     = out;
+            watchdogs[i] = watchdog;
+            indexes.put(completion.submit(new Callable<String>() {
+               public String call() {
+                  if (contender._optimizer instanceof InProcessOptimizer) {
+                     return FileProcessor.optimizeInProcess((InProcessOptimizer) contender._optimizer, in, out);
+                  } else {
+                     return FileProcessor.optimizeWithCommand(project, (CommandOptimizer) contender._optimizer, contender._command, contender._arguments, in, out, watchdog, new Buffer());
+                  }
+               }
+            }), i);
+         }
+
+         // Collect the results as they come in
+         int        best = -1;
+         long   bestSize = Long.MAX_VALUE;
+         String lastError = null;
+         for (int remaining = count; remaining > 0; ) {
+            Future<String> future = completion.take();
+            int                 i = indexes.get(future);
+            Contender   contender = contenders.get(i);
+            remaining--;
+
+            String error;
+            try {
+               error = future.get();
+            } catch (ExecutionException cause) {
+               error = String.valueOf(cause.getCause());
+            }
+            long size = temps[i].length();
+            if (watchdogs[i] != null && watchdogs[i].killedProcess()) {
+               result.timedOut();
+               lastError = contender._description + ": Timed out.";
+               result.log("Candidate " + quote(contender._description) + " for " + quote(inFileName) + " timed out.", MSG_VERBOSE);
+            } else if (error != null || size < 1L) {
+               lastError = contender._description + ": " + (isEmpty(error) ? "Generated output file is empty." : error);
+               result.log("Candidate " + quote(contender._description) + " failed to optimize " + quote(inFileName) + '.', MSG_VERBOSE);
+            } else {
+               result.log("Candidate " + quote(contender._description) + " optimized " + quote(inFileName) + " to " + size + " bytes.", MSG_VERBOSE);
+               if (size < bestSize) {
+                  best     = i;
+                  bestSize = size;
+               }
+            }
+         }
+
+         if (best < 0) {
+            return (lastError == null) ? "" : lastError;
+         }
+
+         // Move the winner into place
+         result.log("Best result for " + quote(inFileName) + " is by " + quote(contenders.get(best)._description) + '.', MSG_VERBOSE);
+         Copier.move(temps[best], outFile);
+         return null;
+
+      } catch (InterruptedException cause) {
+         for (ExecuteWatchdog watchdog : watchdogs) {
+            if (watchdog != null) {
+               watchdog.timeoutOccured(null);
+            }
+         }
+         for (Future<String> future : indexes.keySet()) {
+            future.cancel(true);
+         }
+         Thread.currentThread().interrupt();
+         return "Interrupted.";
+      } catch (IOException cause) {
+         return String.valueOf(cause.getMessage());
+      } finally {
+         for (File temp : temps) {
+            if (temp != null) {
+               temp.delete();
+            }
+         }
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>BestOfOptimization</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private BestOfOptimization() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * A resolved and available candidate for best-of mode: a
+    * <code>&lt;candidate&gt;</code> element with the defaults of the task
+    * applied, for which the optimizer is known to be available, since its
+    * version could be determined. Instances are immutable.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   static final class Contender extends Object {
+
+      /**
+       * Constructs a new <code>Contender</code>. The arguments are not
+       * checked, nor is the list of arguments copied.
+       *
+       * @param optimizer
+       *    the optimizer, cannot be <code>null</code>.
+       *
+       * @param command
+       *    the command to execute, or <code>null</code> if the optimizer is
+       *    not a {@link CommandOptimizer}.
+       *
+       * @param arguments
+       *    the additional arguments to pass to the command, cannot be
+       *    <code>null</code>, but can be empty; must not be changed
+       *    afterwards.
+       *
+       * @param version
+       *    the version of the optimizer, cannot be <code>null</code>.
+       *
+       * @param description
+       *    the description of the candidate, for log messages and the cache
+       *    key, cannot be <code>null</code>.
+       */
+      Contender(Optimizer    optimizer,
+                String       command,
+                List<String> arguments,
+                String       version,
+                String       description) {
+         _optimizer   = optimizer;
+         _command     = command;
+         _arguments   = arguments;
+         _version     = version;
+         _description = description;
+      }
+
+      /**
+       * The optimizer. Never <code>null</code>.
+       */
+      final Optimizer _optimizer;
+
+      /**
+       * The command to execute, or <code>null</code> if the optimizer is not
+       * a {@link CommandOptimizer}.
+       */
+      final String _command;
+
+      /**
+       * The additional arguments to pass to the command. Never
+       * <code>null</code>.
+       */
+      final List<String> _arguments;
+
+      /**
+       * The version of the optimizer. Never <code>null</code>.
+       */
+      final String _version;
+
+      /**
+       * Description of this candidate, used in log messages and as part of
+       * the cache key. Never <code>null</code>.
+       */
+      final String _description;
+   }
+}
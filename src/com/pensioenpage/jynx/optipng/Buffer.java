@@ -5,6 +5,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
 import org.apache.tools.ant.taskdefs.StreamPumper;
@@ -13,12 +19,38 @@ import org.apache.tools.ant.taskdefs.StreamPumper;
  * An <code>ExecuteStreamHandler</code> implementation that stores all
  * output in a buffer.
  *
+ * <p>The output of the process is drained by {@link StreamPumper}s running
+ * on a pool of daemon threads that is shared by all instances, so that the
+ * threads are reused across processes instead of being created for each
+ * one. The pool is unbounded, since each running process needs both of
+ * its streams to be drained at the same time; idle threads are discarded
+ * after a minute.
+ *
+ * <p>A buffer serves a single process: the streams must be set before
+ * {@link #start()} is called, and it can be started only once.
+ *
  * @version $Revision: 10190 $ $Date: 2009-08-25 17:49:35 +0200 (di, 25 aug 2009) $
  * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
  */
 class Buffer extends Object implements ExecuteStreamHandler {
 
-   // TODO: Add state checking
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The pool of threads that run the stream pumpers. Never
+    * <code>null</code>.
+    */
+   private static final ExecutorService PUMPS = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger _count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, "optipng-pump-" + _count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
 
    //-------------------------------------------------------------------------
    // Constructors
@@ -48,20 +80,32 @@ class Buffer extends Object implements ExecuteStreamHandler {
    private final ByteArrayOutputStream _errBuffer;
 
    /**
-    * The thread pumping the <em>stdout</em> output to the buffer.
+    * The pumper for the <em>stdout</em> output to the buffer.
     * Initially <code>null</code>, set by
     * {@link #setProcessOutputStream(InputStream)}.
-    * The thread is started from the {@link #start()} method.
+    * The pumper is started from the {@link #start()} method.
     */
-   private Thread _outThread;
+   private StreamPumper _outPumper;
 
    /**
-    * The thread pumping the <em>stderr</em> output to the buffer.
+    * The pumper for the <em>stderr</em> output to the buffer.
     * Initially <code>null</code>, set by
     * {@link #setProcessErrorStream(InputStream)}.
-    * The thread is started from the {@link #start()} method.
+    * The pumper is started from the {@link #start()} method.
     */
-   private Thread _errThread;
+   private StreamPumper _errPumper;
+
+   /**
+    * The running <em>stdout</em> pumper. Initially <code>null</code>, set
+    * by the {@link #start()} method.
+    */
+   private Future<?> _outFuture;
+
+   /**
+    * The running <em>stderr</em> pumper. Initially <code>null</code>, set
+    * by the {@link #start()} method.
+    */
+   private Future<?> _errFuture;
 
 
    //----------------------------------------------------------------------
@@ -74,32 +118,71 @@ class Buffer extends Object implements ExecuteStreamHandler {
    }
 
    // Specified by ExecuteStreamHandler
-   public void setProcessOutputStream(InputStream is) {
-      _outThread = new Thread(new StreamPumper(is, _outBuffer));
+   public void setProcessOutputStream(InputStream is)
+   throws IllegalArgumentException, IllegalStateException {
+      if (is == null) {
+         throw new IllegalArgumentException("is == null");
+      }
+      checkNotStarted();
+      _outPumper = new StreamPumper(is, _outBuffer);
    }
 
    // Specified by ExecuteStreamHandler
-   public void setProcessErrorStream(InputStream is) {
-      _errThread = new Thread(new StreamPumper(is, _errBuffer));
+   public void setProcessErrorStream(InputStream is)
+   throws IllegalArgumentException, IllegalStateException {
+      if (is == null) {
+         throw new IllegalArgumentException("is == null");
+      }
+      checkNotStarted();
+      _errPumper = new StreamPumper(is, _errBuffer);
    }
 
    // Specified by ExecuteStreamHandler
-   public void start() {
-      _outThread.start();
-      _errThread.start();
+   public void start() throws IllegalStateException {
+      checkNotStarted();
+      if (_outPumper == null || _errPumper == null) {
+         throw new IllegalStateException("Process streams not set.");
+      }
+      _outFuture = PUMPS.submit(_outPumper);
+      _errFuture = PUMPS.submit(_errPumper);
    }
 
    // Specified by ExecuteStreamHandler
    public void stop() {
-      try {
-         _outThread.join();
-      } catch (InterruptedException e) {
-         // ignore
+
+      // Nothing to wait for if the process was never started
+      if (_outFuture == null) {
+         return;
+      }
+      await(_outFuture);
+      await(_errFuture);
+   }
+
+   /**
+    * Checks that the pumpers have not been started yet.
+    *
+    * @throws IllegalStateException
+    *    if {@link #start()} has been called already.
+    */
+   private void checkNotStarted() throws IllegalStateException {
+      if (_outFuture != null) {
+         throw new IllegalStateException("Already started.");
       }
+   }
+
+   /**
+    * Waits for the specified pumper to finish.
+    *
+    * @param future
+    *    the running pumper, cannot be <code>null</code>.
+    */
+   private static void await(Future<?> future) {
       try {
-         _errThread.join();
+         future.get();
       } catch (InterruptedException e) {
-         // ignore
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         // ignore, StreamPumper does not throw
       }
    }
 
@@ -152,7 +235,11 @@ class Buffer extends Object implements ExecuteStreamHandler {
     * @throws IOException
     *    in case of an I/O error.
     */
-   public void writeErrTo(OutputStream os) throws IOException {
+   public void writeErrTo(OutputStream os)
+   throws IOException {
+      if (os == null) {
+         throw new IllegalArgumentException("os == null");
+      }
       _errBuffer.writeTo(os);
    }
 
@@ -0,0 +1,151 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link Optimizer} that executes an external command. The implementation
+ * determines how the command is probed for its version, how the command line
+ * is constructed, how success is detected and how the output is parsed; the
+ * task takes care of executing the command.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public interface CommandOptimizer extends Optimizer {
+
+   /**
+    * Returns the command to execute if none is configured.
+    *
+    * @return
+    *    the default command, e.g. <code>"optipng"</code>, never
+    *    <code>null</code>.
+    */
+   String getDefaultCommand();
+
+   /**
+    * Returns the command line that makes the command output its version.
+    * The command is considered available if this command line executes
+    * successfully.
+    *
+    * @param command
+    *    the command, cannot be <code>null</code>.
+    *
+    * @return
+    *    the command line, never <code>null</code>.
+    */
+   String[] getVersionCommandLine(String command);
+
+   /**
+    * Determines the version from the output of the version command line.
+    *
+    * @param output
+    *    the <em>stdout</em> output, never <code>null</code>.
+    *
+    * @param errorOutput
+    *    the <em>stderr</em> output, never <code>null</code>.
+    *
+    * @return
+    *    the version, or <code>null</code> if it cannot be determined.
+    */
+   String parseVersion(String output, String errorOutput);
+
+   /**
+    * Returns the command line for optimizing a single file.
+    *
+    * @param command
+    *    the command, cannot be <code>null</code>.
+    *
+    * @param args
+    *    additional arguments configured for the task, to be included in
+    *    the command line, never <code>null</code>.
+    *
+    * @param inFile
+    *    the input file, never <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, never <code>null</code>; can be the same as
+    *    <code>inFile</code>.
+    *
+    * @return
+    *    the command line, never <code>null</code>.
+    */
+   String[] getCommandLine(String command, List<String> args, File inFile, File outFile);
+
+   /**
+    * Checks the result of optimizing a single file. This is only called if
+    * the command could be executed at all; the task itself checks
+    * afterwards that the output file exists and is not empty.
+    *
+    * @param exitValue
+    *    the exit value of the command.
+    *
+    * @param output
+    *    the <em>stdout</em> output, never <code>null</code>.
+    *
+    * @param errorOutput
+    *    the <em>stderr</em> output, never <code>null</code>.
+    *
+    * @return
+    *    <code>null</code> on success, or a description of the error on
+    *    failure (can be an empty string).
+    */
+   String checkResult(int exitValue, String output, String errorOutput);
+
+   /**
+    * Returns the command line for optimizing a number of files, all written
+    * to the same output directory, with the same name as the input file.
+    *
+    * @param command
+    *    the command, cannot be <code>null</code>.
+    *
+    * @param args
+    *    additional arguments configured for the task, to be included in
+    *    the command line, never <code>null</code>.
+    *
+    * @param inFiles
+    *    the input files, never <code>null</code> and never empty.
+    *
+    * @param outDir
+    *    the output directory, or <code>null</code> if the input files should
+    *    be optimized in-place.
+    *
+    * @return
+    *    the command line, or <code>null</code> if this optimizer does not
+    *    support processing multiple files per invocation.
+    */
+   String[] getBatchCommandLine(String command, List<String> args, List<File> inFiles, File outDir);
+
+   /**
+    * Splits the output of a batch invocation into sections per input file.
+    *
+    * @param output
+    *    the <em>stdout</em> output, never <code>null</code>.
+    *
+    * @param errorOutput
+    *    the <em>stderr</em> output, never <code>null</code>.
+    *
+    * @return
+    *    a map from the path of each input file, as passed on the command
+    *    line, to the output for that file; never <code>null</code>.
+    */
+   Map<String,String> splitBatchOutput(String output, String errorOutput);
+
+   /**
+    * Checks the result of optimizing a single file as part of a batch.
+    *
+    * @param section
+    *    the output for the file, as returned by
+    *    {@link #splitBatchOutput(String,String)}, never <code>null</code>.
+    *
+    * @param batchFailed
+    *    <code>true</code> if the batch as a whole failed, e.g. because of a
+    *    non-zero exit value.
+    *
+    * @return
+    *    <code>true</code> if the file was optimized successfully;
+    *    <code>false</code> otherwise.
+    */
+   boolean checkBatchResult(String section, boolean batchFailed);
+}
@@ -0,0 +1,377 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Utility functions for copying and moving files without moving the
+ * contents through the Java heap. The contents are either transferred by the
+ * operating system using
+ * {@link FileChannel#transferTo(long,long,java.nio.channels.WritableByteChannel)},
+ * or the destination is created as a hard link to the source.
+ *
+ * <p>The text files that are kept between runs, such as the manifest and
+ * the history, are written through this class as well, so that they are
+ * always replaced atomically.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Copier extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The prefix of the names of temporary files and directories:
+    * <code>".optipng-"</code>.
+    */
+   static final String TEMP_PREFIX = ".optipng-";
+
+   /**
+    * The character encoding used for text files: UTF-8.
+    */
+   private static final String ENCODING = "UTF-8";
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Copies the specified source file to the specified destination file. If
+    * the destination exists, it is replaced. If the parent directory of the
+    * destination does not exist, it is created. If source and destination
+    * refer to the same file, then nothing is done. The contents are copied
+    * to a temporary file that is then moved into place, so an interrupted
+    * copy never leaves a truncated destination behind.
+    *
+    * @param source
+    *    the source file, cannot be <code>null</code>.
+    *
+    * @param dest
+    *    the destination file, cannot be <code>null</code>.
+    *
+    * @param linkMode
+    *    the link mode, cannot be <code>null</code>. If this is
+    *    {@link LinkMode#HARD} then a hard link is attempted first, falling
+    *    back to a regular copy if that fails, e.g. because source and
+    *    destination are on different file systems.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>source == null || dest == null || linkMode == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static void copy(File source, File dest, LinkMode linkMode)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (source == null) {
+         throw new IllegalArgumentException("source == null");
+      } else if (dest == null) {
+         throw new IllegalArgumentException("dest == null");
+      } else if (linkMode == null) {
+         throw new IllegalArgumentException("linkMode == null");
+      }
+
+      // Short-circuit if source and destination are the same file, this
+      // includes the case where the destination is a hard link to the source
+      if (dest.exists() && Files.isSameFile(source.toPath(), dest.toPath())) {
+         return;
+      }
+
+      // Make sure the parent directory exists
+      createParentDir(dest);
+
+      // Attempt to create a hard link
+      if (linkMode == LinkMode.HARD) {
+         Files.deleteIfExists(dest.toPath());
+         try {
+            Files.createLink(dest.toPath(), source.toPath());
+            return;
+         } catch (IOException cause) {
+            // fall back to a regular copy
+         } catch (UnsupportedOperationException cause) {
+            // fall back to a regular copy
+         }
+      }
+
+      File temp = createTempFile(dest);
+      try {
+         transfer(source, temp);
+         move(temp, dest);
+      } finally {
+         temp.delete();
+      }
+   }
+
+   /**
+    * Creates a new, empty temporary file next to the specified destination
+    * file, creating the parent directory if necessary. Output can be written
+    * to this file and then moved to the destination using
+    * {@link #move(File,File)}, so that the destination is never left
+    * incomplete.
+    *
+    * @param dest
+    *    the destination file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the temporary file, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dest == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static File createTempFile(File dest) throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (dest == null) {
+         throw new IllegalArgumentException("dest == null");
+      }
+
+      createParentDir(dest);
+      return File.createTempFile(TEMP_PREFIX + dest.getName() + '.', ".tmp", dest.getAbsoluteFile().getParentFile());
+   }
+
+   /**
+    * Creates a new, empty temporary directory within the specified
+    * directory, creating that directory if necessary.
+    *
+    * @param dir
+    *    the directory, cannot be <code>null</code>.
+    *
+    * @return
+    *    the temporary directory, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dir == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static File createTempDir(File dir) throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (dir == null) {
+         throw new IllegalArgumentException("dir == null");
+      }
+
+      if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+         throw new IOException("Unable to create directory \"" + dir + "\".");
+      }
+      return Files.createTempDirectory(dir.toPath(), TEMP_PREFIX).toFile();
+   }
+
+   /**
+    * Checks if the specified relative path is, or is within, a temporary
+    * file or directory created by this class. Such files may be left behind
+    * when a build is killed, or may show up while scanning a directory that
+    * output is being written to.
+    *
+    * @param name
+    *    the relative path, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the path is temporary,
+    *    <code>false</code> otherwise.
+    */
+   static boolean isTemporary(String name) {
+      for (int index = name.indexOf(TEMP_PREFIX); index >= 0; index = name.indexOf(TEMP_PREFIX, index + 1)) {
+         char c = (index > 0) ? name.charAt(index - 1) : '/';
+         if (c == '/' || c == File.separatorChar) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Moves the specified source file to the specified destination file,
+    * replacing the destination if it exists. The move is atomic if the file
+    * system supports that, so readers of the destination see either the old
+    * or the new contents, never a mix.
+    *
+    * @param source
+    *    the source file, cannot be <code>null</code>.
+    *
+    * @param dest
+    *    the destination file, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>source == null || dest == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static void move(File source, File dest)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (source == null) {
+         throw new IllegalArgumentException("source == null");
+      } else if (dest == null) {
+         throw new IllegalArgumentException("dest == null");
+      }
+
+      try {
+         Files.move(source.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException cause) {
+         Files.move(source.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+   }
+
+   /**
+    * Writes the specified lines to the specified text file, each terminated
+    * by a line feed. The lines are written to a temporary file that then
+    * replaces the file, see {@link #move(File,File)}, so that the file is
+    * never left incomplete.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @param lines
+    *    the lines, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>file == null || lines == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static void writeLines(File file, List<String> lines)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (file == null) {
+         throw new IllegalArgumentException("file == null");
+      } else if (lines == null) {
+         throw new IllegalArgumentException("lines == null");
+      }
+
+      File temp = createTempFile(file);
+      try {
+         PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), ENCODING));
+         try {
+            for (String line : lines) {
+               writer.print(line + '\n');
+            }
+         } finally {
+            writer.close();
+         }
+         if (writer.checkError()) {
+            throw new IOException("Unable to write \"" + temp + "\".");
+         }
+         move(temp, file);
+      } finally {
+         temp.delete();
+      }
+   }
+
+   /**
+    * Creates the parent directory of the specified file, if it does not
+    * exist yet.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the directory cannot be created.
+    */
+   private static void createParentDir(File file) throws IOException {
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+         throw new IOException("Unable to create directory \"" + dir + "\".");
+      }
+   }
+
+   /**
+    * Copies the contents of the specified source file to the specified
+    * destination file, using
+    * {@link FileChannel#transferTo(long,long,java.nio.channels.WritableByteChannel)}.
+    *
+    * @param source
+    *    the source file, cannot be <code>null</code>.
+    *
+    * @param dest
+    *    the destination file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   private static void transfer(File source, File dest) throws IOException {
+      FileInputStream in = new FileInputStream(source);
+      try {
+         FileOutputStream out = new FileOutputStream(dest);
+         try {
+            FileChannel  inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size     = inChannel.size();
+            long position = 0L;
+            while (position < size) {
+               long count = inChannel.transferTo(position, size - position, outChannel);
+               if (count < 1L) {
+                  throw new IOException("Unexpected end of file \"" + source + "\".");
+               }
+               position += count;
+            }
+         } finally {
+            out.close();
+         }
+      } finally {
+         in.close();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Copier</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private Copier() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * Enumeration type for the different ways to copy a file.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   enum LinkMode {
+
+      /**
+       * Always copy the contents.
+       */
+      NONE,
+
+      /**
+       * Create a hard link, if possible. Otherwise copy the contents. The
+       * destination then shares its contents with the source, so modifying
+       * either in-place modifies both; replacing either by renaming, as
+       * {@link #move(File,File)} does, breaks the link.
+       */
+      HARD;
+   }
+}
@@ -0,0 +1,125 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Utility functions for measuring CPU time, used for the per-file report.
+ *
+ * <p>The CPU time of child processes is read from
+ * <code>/proc/self/stat</code>, which is only available on Linux. This is
+ * the total for all child processes that have terminated and have been
+ * waited for, so the difference between 2 measurements can only be
+ * attributed to a single file if no other child processes run in the
+ * meantime.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class CpuTime extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The file holding the process statistics on Linux.
+    */
+   private static final File PROC_STAT = new File("/proc/self/stat");
+
+   /**
+    * The number of milliseconds per clock tick in
+    * <code>/proc/self/stat</code>. The kernel always reports in units of
+    * <code>USER_HZ</code>, which is 100 on all common architectures.
+    */
+   private static final long MILLIS_PER_TICK = 10L;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the CPU time used by the current thread so far.
+    *
+    * @return
+    *    the CPU time in milliseconds, or -1 if this is not supported by the
+    *    JVM.
+    */
+   static long currentThread() {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (! bean.isCurrentThreadCpuTimeSupported()) {
+         return -1L;
+      }
+      try {
+         long nanos = bean.getCurrentThreadCpuTime();
+         return (nanos < 0L) ? -1L : nanos / 1000000L;
+      } catch (UnsupportedOperationException cause) {
+         return -1L;
+      }
+   }
+
+   /**
+    * Returns the CPU time (user and system) used by all terminated child
+    * processes of this process so far.
+    *
+    * @return
+    *    the CPU time in milliseconds, or -1 if this cannot be determined on
+    *    the current platform.
+    */
+   static long children() {
+      if (! PROC_STAT.canRead()) {
+         return -1L;
+      }
+
+      // Read the file; it is a single short line
+      StringBuilder s = new StringBuilder(512);
+      try {
+         InputStream in = new FileInputStream(PROC_STAT);
+         try {
+            int b;
+            while ((b = in.read()) >= 0) {
+               s.append((char) b);
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException cause) {
+         return -1L;
+      }
+
+      // The command name is between parentheses and may contain spaces, so
+      // start after it; then the "cutime" and "cstime" fields (16 and 17)
+      // are at index 13 and 14
+      int index = s.lastIndexOf(")");
+      if (index < 0) {
+         return -1L;
+      }
+      String[] fields = s.substring(index + 1).trim().split(" +");
+      if (fields.length < 15) {
+         return -1L;
+      }
+      try {
+         return (Long.parseLong(fields[13]) + Long.parseLong(fields[14])) * MILLIS_PER_TICK;
+      } catch (NumberFormatException cause) {
+         return -1L;
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>CpuTime</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private CpuTime() {
+      // empty
+   }
+}
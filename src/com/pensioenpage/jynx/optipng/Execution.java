@@ -0,0 +1,214 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * The settings for a single execution of the {@link OptiPNGTask}. These are
+ * determined at the start of {@link OptiPNGTask#execute()}, which sets each
+ * field by name, and are then shared by all worker threads.
+ *
+ * <p>The fields must not be changed once the first file has been
+ * selected. Since the worker threads only receive their work after that,
+ * through an executor, they see the values as they were set.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Execution extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Execution</code>. All fields are set afterwards.
+    */
+   Execution() {
+      _convertedNames = new HashSet<String>();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The project the task belongs to, used for executing commands. Never
+    * <code>null</code>.
+    */
+   Project _project;
+
+   /**
+    * The source directory. Never <code>null</code>.
+    */
+   File _sourceDir;
+
+   /**
+    * The destination directory. Never <code>null</code>.
+    */
+   File _destDir;
+
+   /**
+    * Flag that indicates if existing newer output files are overwritten.
+    */
+   boolean _overwrite;
+
+   /**
+    * The optimizer. Never <code>null</code>.
+    */
+   Optimizer _optimizer;
+
+   /**
+    * The command to execute, or <code>null</code> if the optimizer is not
+    * a {@link CommandOptimizer}.
+    */
+   String _command;
+
+   /**
+    * The additional arguments to pass to the command for each file. Never
+    * <code>null</code>.
+    */
+   List<String> _arguments;
+
+   /**
+    * Flag that indicates if optimization should be attempted at all.
+    */
+   boolean _transform;
+
+   /**
+    * Flag that indicates if GIF, BMP and TIFF images should be converted
+    * to PNG.
+    */
+   boolean _convert;
+
+   /**
+    * The process option. Never <code>null</code>.
+    */
+   ProcessOption _processOption;
+
+   /**
+    * The way files are copied. Never <code>null</code>.
+    */
+   Copier.LinkMode _linkMode;
+
+   /**
+    * The optimization cache, or <code>null</code> if none.
+    */
+   OptimizationCache _cache;
+
+   /**
+    * The manifest of files optimized in-place, or <code>null</code> if
+    * none.
+    */
+   Manifest _manifest;
+
+   /**
+    * The winning compression parameters for each image, or
+    * <code>null</code> if these are not recorded.
+    */
+   TrialStore _trials;
+
+   /**
+    * The savings achieved for each input file, or <code>null</code> if
+    * no history is kept.
+    */
+   SavingsHistory _history;
+
+   /**
+    * Flag that indicates if the savings of files without history should
+    * be estimated.
+    */
+   boolean _probe;
+
+   /**
+    * The minimum predicted savings for a file to be optimized, as a
+    * fraction of the file size, or 0 if all files should be optimized.
+    */
+   double _minSavings;
+
+   /**
+    * The candidates that are raced against each other for each file, or
+    * <code>null</code> if not in best-of mode.
+    */
+   List<BestOfOptimization.Contender> _contenders;
+
+   /**
+    * The pool that runs the candidates, or <code>null</code> if not in
+    * best-of mode.
+    */
+   ExecutorService _racePool;
+
+   /**
+    * The model that determines the time-out for each file. Never
+    * <code>null</code>.
+    */
+   TimeOutModel _timeOuts;
+
+   /**
+    * The time at which the budget is exhausted, as returned by
+    * {@link System#currentTimeMillis()}, or 0 if there is no budget.
+    */
+   long _deadline;
+
+   /**
+    * The names of the output files of the files selected for conversion
+    * so far, relative to the destination directory. Only accessed by the
+    * thread that selects the files. Never <code>null</code>.
+    */
+   final Set<String> _convertedNames;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Checks if the time budget is exhausted.
+    *
+    * @return
+    *    <code>true</code> if there is a budget and it is exhausted;
+    *    <code>false</code> otherwise.
+    */
+   boolean isOverBudget() {
+      return _deadline > 0L && System.currentTimeMillis() >= _deadline;
+   }
+
+   /**
+    * Limits the specified time-out to the remaining time budget.
+    *
+    * @param timeOut
+    *    the time-out in milliseconds, or 0 (or lower) if none.
+    *
+    * @return
+    *    the limited time-out in milliseconds, or 0 (or lower) if none.
+    */
+   long capToBudget(long timeOut) {
+      if (_deadline < 1L) {
+         return timeOut;
+      }
+      long remaining = Math.max(1L, _deadline - System.currentTimeMillis());
+      return (timeOut > 0L) ? Math.min(timeOut, remaining) : remaining;
+   }
+
+   /**
+    * Determines the time-out for the specified file, taking into account
+    * the time budget, unless the file is converted, since it cannot be
+    * copied instead.
+    *
+    * @param result
+    *    the result for the file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the time-out in milliseconds, or 0 (or lower) if none.
+    */
+   long timeOutFor(FileResult result) {
+      long timeOut = _timeOuts.timeOutFor(result.getCost());
+      return result.isConversion() ? timeOut : capToBudget(timeOut);
+   }
+}
@@ -0,0 +1,498 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.tools.ant.Project;
+import static org.apache.tools.ant.Project.MSG_ERR;
+import static org.apache.tools.ant.Project.MSG_VERBOSE;
+import static org.apache.tools.ant.Project.MSG_WARN;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.isEmpty;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.quote;
+
+/**
+ * Processing of a single selected input file: the file is restored from the
+ * cache, optimized or copied, and the outcome is recorded in the result,
+ * the cache, the manifest and the history. The optimization itself is
+ * delegated to {@link BestOfOptimization} in best-of mode and to
+ * {@link TrialOptimization} when trials are recorded.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class FileProcessor extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Processes a single input file that has been selected for processing.
+    * This method is called from the worker threads, so it must not change
+    * any shared state other than through the thread-safe stores in the
+    * execution. Instead, all log messages and counters are recorded in the
+    * result.
+    *
+    * @param result
+    *    the result for the file, as returned by the {@link FileSelection},
+    *    cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    */
+   static void process(FileResult result, Execution execution) {
+
+      // Some preparations related to the input file and output file
+      long     thisStart = System.currentTimeMillis();
+      String  inFileName = result.getFileName();
+      File        inFile = result.getInFile();
+      File       outFile = result.getOutFile();
+      String outFilePath = outFile.getPath();
+      String  inFilePath = inFile.getPath();
+
+      // File transformation (optimization) should be attempted
+      boolean transform = execution._transform;
+      if (transform && execution._cache != null && restoreFromCache(result, execution, thisStart)) {
+         return;
+      }
+
+      // Once the budget is exhausted, the file is copied instead, unless it
+      // needs to be converted
+      if (transform && execution.isOverBudget() && ! result.isConversion()) {
+         result.log("Copying " + quote(inFileName) + " because the time budget is exhausted.", MSG_VERBOSE);
+         result.overBudget();
+         transform = false;
+      }
+
+      // Files that are predicted to save too little are copied instead
+      if (transform && (result.isLowYield() || isLowYield(result, execution))) {
+         transform = false;
+      }
+
+      boolean copy = !transform;
+      if (transform) {
+
+         // Optimize the file into a temporary file next to the output file,
+         // which only replaces the output file once it is complete, so that
+         // an interrupted run never leaves a truncated output file behind
+         // that would then be considered up-to-date
+         File            tempFile = null;
+         ExecuteWatchdog watchdog = null;
+         boolean             kept = false;
+         String errorOutput;
+         try {
+            tempFile = Copier.createTempFile(outFile);
+            if (execution._contenders != null) {
+               errorOutput = BestOfOptimization.optimize(result, inFile, tempFile, execution);
+            } else if (execution._optimizer instanceof InProcessOptimizer) {
+               errorOutput = optimizeInProcess((InProcessOptimizer) execution._optimizer, inFile, tempFile);
+            } else if (execution._trials != null) {
+               errorOutput = TrialOptimization.optimize(result, inFile, tempFile, execution);
+            } else {
+               long timeOut = execution.timeOutFor(result);
+               watchdog     = (timeOut > 0L) ? new ScheduledWatchdog(timeOut) : null;
+               errorOutput  = optimizeWithCommand(execution._project, (CommandOptimizer) execution._optimizer, execution._command, execution._arguments, inFile, tempFile, watchdog, new Buffer());
+            }
+
+            // A non-existent or empty file also indicate failure
+            if (errorOutput == null) {
+               if (! tempFile.exists()) {
+                  errorOutput = "Output file not created.";
+               } else if (tempFile.length() < 1L) {
+                  errorOutput = "Generated output file is empty.";
+               } else {
+                  kept = ! install(result, tempFile, execution);
+               }
+            }
+         } catch (IOException cause) {
+            errorOutput = "Unable to write " + quote(outFilePath) + ": " + cause.getMessage();
+         } finally {
+            if (tempFile != null) {
+               tempFile.delete();
+            }
+         }
+         boolean failure = errorOutput != null;
+
+         // Log the result for this individual file; a failure only counts
+         // as running out of budget if the command was actually killed
+         long thisDuration = System.currentTimeMillis() - thisStart;
+         if (watchdog != null && watchdog.killedProcess()) {
+            result.timedOut();
+         }
+         if (failure && watchdog != null && watchdog.killedProcess() && ! execution.isOverBudget()) {
+            execution._timeOuts.observeTimeOut(result.getCost(), thisDuration);
+         }
+         if (failure && result.isTimedOut() && execution.isOverBudget() && ! result.isConversion()) {
+            result.log("Stopped optimizing " + quote(inFileName) + " because the time budget is exhausted, copying it instead.", MSG_VERBOSE);
+            result.overBudget();
+            copy = true;
+         } else if (failure) {
+            String logMessage = "Failed to optimize " + quote(inFilePath);
+            if (isEmpty(errorOutput)) {
+               logMessage += '.';
+            } else {
+               logMessage += ": " + errorOutput;
+            }
+            result.log(logMessage, MSG_ERR);
+            result.failed();
+
+            // Failed, but then instead copy the input file unchanged, unless
+            // it needed to be converted
+            if (execution._processOption != ProcessOption.MUST && ! result.isConversion()) {
+               copy = true;
+            }
+         } else {
+            if (execution._contenders == null) {
+               execution._timeOuts.observe(result.getCost(), thisDuration);
+            }
+            if (kept) {
+               keptOriginal(result, execution);
+            } else {
+               result.log("Optimized " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
+               optimized(result, execution);
+            }
+         }
+      }
+
+      // Copy the file?
+      if (copy) {
+         try {
+            Copier.copy(inFile, outFile, execution._linkMode);
+            long thisDuration = System.currentTimeMillis() - thisStart;
+            result.log("Copied " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
+            result.copied();
+         } catch (Throwable cause) {
+            String logMessage = "Failed to copy " + quote(inFilePath) + " to " + quote(outFilePath) + '.';
+            result.log(logMessage, MSG_ERR);
+            result.failed();
+         }
+      }
+   }
+
+   /**
+    * Optimizes a single file by executing the command of a
+    * {@link CommandOptimizer}.
+    *
+    * @param project
+    *    the project, used to execute the command, cannot be
+    *    <code>null</code>.
+    *
+    * @param optimizer
+    *    the optimizer, cannot be <code>null</code>.
+    *
+    * @param command
+    *    the command to execute, cannot be <code>null</code>.
+    *
+    * @param arguments
+    *    the additional arguments to pass to the command, cannot be
+    *    <code>null</code>.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>; it is replaced if it
+    *    exists.
+    *
+    * @param watchdog
+    *    the watchdog for the command, or <code>null</code> if none.
+    *
+    * @param buffer
+    *    the buffer that receives the output of the command, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    <code>null</code> on success, or the error output on failure (can be
+    *    an empty string).
+    */
+   static String optimizeWithCommand(Project          project,
+                                     CommandOptimizer optimizer,
+                                     String           command,
+                                     List<String>     arguments,
+                                     File             inFile,
+                                     File             outFile,
+                                     ExecuteWatchdog  watchdog,
+                                     Buffer           buffer) {
+
+      // Prepare for the command execution
+      Execute            execute = new Execute(buffer, watchdog);
+      String[]           cmdline = optimizer.getCommandLine(command, arguments, inFile, outFile);
+
+      execute.setAntRun(project);
+      execute.setCommandline(cmdline);
+
+      // Commands may refuse to overwrite an existing file, such as the empty
+      // temporary file they are typically passed
+      outFile.delete();
+
+      // Execute the command
+      int exitValue;
+      try {
+         exitValue = execute.execute();
+      } catch (IOException cause) {
+         return "Unable to execute command " + quote(command) + ": " + cause.getMessage();
+      }
+
+      // Let the optimizer interpret the result
+      return optimizer.checkResult(exitValue, buffer.getOutString(), buffer.getErrString());
+   }
+
+   /**
+    * Optimizes a single file using an {@link InProcessOptimizer}.
+    *
+    * @param optimizer
+    *    the optimizer, cannot be <code>null</code>.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>null</code> on success, or the error message on failure.
+    */
+   static String optimizeInProcess(InProcessOptimizer optimizer, File inFile, File outFile) {
+      try {
+         optimizer.optimize(inFile, outFile);
+         return null;
+      } catch (IOException cause) {
+         return String.valueOf(cause.getMessage());
+      }
+   }
+
+   /**
+    * Attempts to write the optimized version of the specified file from the
+    * cache. If the cache records that optimizing the file does not make it
+    * smaller, then the input file is copied or linked instead and the
+    * original is registered as kept; otherwise the file is registered as
+    * optimized.
+    *
+    * @param result
+    *    the result for the file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>;
+    *    the optimization cache must be set.
+    *
+    * @param start
+    *    the time processing of the file started, used for logging.
+    *
+    * @return
+    *    <code>true</code> if the file was taken from the cache;
+    *    <code>false</code> otherwise.
+    */
+   static boolean restoreFromCache(FileResult result, Execution execution, long start) {
+      OptimizationCache cache = execution._cache;
+      String       inFileName = result.getFileName();
+      try {
+         String key = result.getCacheKey();
+         if (key == null) {
+            key = cache.key(result.getInFile());
+            result.setCacheKey(key);
+         }
+         if (cache.restore(key, result.getOutFile())) {
+            long duration = System.currentTimeMillis() - start;
+            result.log("Optimized " + quote(inFileName) + " from cache in " + duration + " ms.", MSG_VERBOSE);
+            result.optimized();
+            recordInManifest(result, execution);
+            return true;
+
+         // Optimizing the file is known not to gain anything, so copy or
+         // link it, which is a no-op when optimizing in-place
+         } else if (cache.isUnchanged(key)) {
+            Copier.copy(result.getInFile(), result.getOutFile(), execution._linkMode);
+            long duration = System.currentTimeMillis() - start;
+            result.log("Kept the original of " + quote(inFileName) + " from cache in " + duration + " ms; optimizing it does not make it smaller.", MSG_VERBOSE);
+            result.kept();
+            recordInManifest(result, execution);
+            return true;
+         }
+      } catch (IOException cause) {
+         result.log("Unable to read " + quote(inFileName) + " from cache: " + cause.getMessage(), MSG_WARN);
+      }
+      return false;
+   }
+
+   /**
+    * Registers that the specified file was optimized by executing the
+    * command. The optimized file is stored in the cache and recorded in the
+    * manifest, if these are used.
+    *
+    * @param result
+    *    the result for the file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    */
+   static void optimized(FileResult result, Execution execution) {
+      result.optimized();
+
+      // Store the optimized file in the cache; files that did not get
+      // smaller never get here, see keptOriginal(FileResult,Execution)
+      OptimizationCache cache = execution._cache;
+      String              key = result.getCacheKey();
+      if (cache != null && key != null) {
+         try {
+            cache.store(key, result.getOutFile());
+         } catch (IOException cause) {
+            result.log("Unable to store " + quote(result.getFileName()) + " in cache: " + cause.getMessage(), MSG_WARN);
+         }
+      }
+
+      recordInManifest(result, execution);
+
+      // Record the savings in the history
+      SavingsHistory history = execution._history;
+      if (history != null && result.getInSize() > 0L && result.getInLastModified() > 0L) {
+         history.record(result.getFileName(), result.getInSize(), result.getInLastModified(), result.getOutFile().length());
+      }
+   }
+
+   /**
+    * Moves the specified optimized file into place as the output file,
+    * unless it is not smaller than the input file. In that case the input file is
+    * copied to the output file instead, which is a hard link if the link
+    * mode allows, and the optimized file is left alone. A converted file is
+    * always moved into place, since the input file is not a PNG file.
+    *
+    * @param result
+    *    the result for the file, cannot be <code>null</code>.
+    *
+    * @param tempFile
+    *    the optimized file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the optimized file was moved into place;
+    *    <code>false</code> if the original was kept instead.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static boolean install(FileResult result, File tempFile, Execution execution)
+   throws IOException {
+      long outSize = tempFile.length();
+      long  inSize = result.getInSize();
+      if (inSize > 0L && outSize >= inSize && ! result.isConversion()) {
+         result.log("Keeping the original of " + quote(result.getFileName()) + " because the optimized file is not smaller (" + outSize + " byte(s)).", MSG_VERBOSE);
+         Copier.copy(result.getInFile(), result.getOutFile(), execution._linkMode);
+         return false;
+      }
+      Copier.move(tempFile, result.getOutFile());
+      return true;
+   }
+
+   /**
+    * Registers that the original of the specified file was kept, since
+    * optimizing it did not make it smaller. Like an optimized file, it is then
+    * recorded in the cache, the manifest and the history, so that it is
+    * not optimized again in vain.
+    *
+    * @param result
+    *    the result for the file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    */
+   static void keptOriginal(FileResult result, Execution execution) {
+      result.kept();
+
+      OptimizationCache cache = execution._cache;
+      String              key = result.getCacheKey();
+      if (cache != null && key != null) {
+         try {
+            cache.storeUnchanged(key);
+         } catch (IOException cause) {
+            result.log("Unable to store " + quote(result.getFileName()) + " in cache: " + cause.getMessage(), MSG_WARN);
+         }
+      }
+
+      recordInManifest(result, execution);
+
+      SavingsHistory history = execution._history;
+      if (history != null && result.getInSize() > 0L && result.getInLastModified() > 0L) {
+         history.record(result.getFileName(), result.getInSize(), result.getInLastModified(), result.getInSize());
+      }
+   }
+
+   /**
+    * Predicts whether optimizing the specified file will save too little to
+    * be worth it. The prediction is taken from the history if the file is
+    * unchanged since it was last optimized, otherwise from the probe, if
+    * enabled. If the file is predicted to save too little, then this is
+    * registered in the result.
+    *
+    * @param result
+    *    the result for the file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the file should not be optimized;
+    *    <code>false</code> if it should, or if no prediction can be made.
+    */
+   static boolean isLowYield(FileResult result, Execution execution) {
+      if (execution._minSavings <= 0.0 || result.isConversion()) {
+         return false;
+      }
+
+      String inFileName = result.getFileName();
+      String     source = "history";
+      double    savings = -1.0;
+      if (execution._history != null) {
+         savings = execution._history.predict(inFileName, result.getInSize(), result.getInLastModified());
+      }
+      if (savings < 0.0 && execution._probe) {
+         source  = "probe";
+         savings = SavingsProbe.probe(result.getInFile());
+      }
+      if (savings < 0.0 || savings >= execution._minSavings) {
+         return false;
+      }
+
+      result.log("Copying " + quote(inFileName) + " because the predicted savings (" + String.format(Locale.ENGLISH, "%.2f", savings * 100.0) + "%, from " + source + ") are too low.", MSG_VERBOSE);
+      result.lowYield();
+      return true;
+   }
+
+   /**
+    * Records the specified optimized file in the manifest, if the manifest
+    * is used.
+    *
+    * @param result
+    *    the result for the file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    */
+   private static void recordInManifest(FileResult result, Execution execution) {
+      if (execution._manifest != null) {
+         try {
+            execution._manifest.record(result.getFileName(), result.getOutFile());
+         } catch (IOException cause) {
+            result.log("Unable to record " + quote(result.getFileName()) + " in manifest: " + cause.getMessage(), MSG_WARN);
+         }
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>FileProcessor</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private FileProcessor() {
+      // empty
+   }
+}
@@ -0,0 +1,679 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.Task;
+
+/**
+ * The result of processing a single input file. Besides the counters, this
+ * also holds the log messages produced while processing the file, so that
+ * these can be output in a deterministic order, even when files are
+ * processed concurrently.
+ *
+ * <p>Instances of this class are not thread-safe; each instance is
+ * expected to be populated by a single worker thread and then to be read
+ * by the thread that executes the task.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class FileResult extends Object {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>FileResult</code> for the specified file.
+    *
+    * @param fileName
+    *    the name of the input file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>fileName == null</code>.
+    */
+   FileResult(String fileName) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (fileName == null) {
+         throw new IllegalArgumentException("fileName == null");
+      }
+
+      _fileName = fileName;
+      _messages = new ArrayList<String>();
+      _levels   = new ArrayList<Integer>();
+      _inSize         = -1L;
+      _inLastModified = -1L;
+      _cost           =  1L;
+      _duration       = -1L;
+      _cpuTime        = -1L;
+      _childCpuTime   = -1L;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of the input file, relative to the source directory.
+    * Never <code>null</code>.
+    */
+   private final String _fileName;
+
+   /**
+    * The log messages collected so far. Never <code>null</code>.
+    */
+   private final List<String> _messages;
+
+   /**
+    * The log levels for the messages in {@link #_messages}, at the same
+    * indexes. Never <code>null</code>.
+    */
+   private final List<Integer> _levels;
+
+   /**
+    * The input file, if the file is to be processed. Initially
+    * <code>null</code>, set by {@link #setFiles(File,File)}.
+    */
+   private File _inFile;
+
+   /**
+    * The output file, if the file is to be processed. Initially
+    * <code>null</code>, set by {@link #setFiles(File,File)}.
+    */
+   private File _outFile;
+
+   /**
+    * The key of this file in the optimization cache. Initially
+    * <code>null</code>, set by {@link #setCacheKey(String)}.
+    */
+   private String _cacheKey;
+
+   /**
+    * The number of failures for this file. Note that a single file can fail
+    * more than once, e.g. when both the optimization and the fallback copy
+    * fail.
+    */
+   private int _failedCount;
+
+   /**
+    * The number of times this file was optimized, either 0 or 1.
+    */
+   private int _optimizeCount;
+
+   /**
+    * The number of times this file was copied, either 0 or 1.
+    */
+   private int _copyCount;
+
+   /**
+    * The number of times this file was skipped, either 0 or 1.
+    */
+   private int _skippedCount;
+
+   /**
+    * The number of times the original of this file was kept because
+    * optimizing it did not make it smaller, either 0 or 1.
+    */
+   private int _keptCount;
+
+   /**
+    * The reason the file was skipped or not optimized, or
+    * <code>null</code> if it was not skipped. See {@link #skipped(String)},
+    * {@link #overBudget()} and {@link #lowYield()}.
+    */
+   private String _skipReason;
+
+   /**
+    * Flag that indicates if the file was not optimized because the time
+    * budget was exhausted.
+    */
+   private boolean _overBudget;
+
+   /**
+    * Flag that indicates if the file was not optimized because the
+    * predicted savings are too low.
+    */
+   private boolean _lowYield;
+
+   /**
+    * Flag that indicates if a command optimizing the file was killed because
+    * it exceeded its time-out.
+    */
+   private boolean _timedOut;
+
+   /**
+    * Flag that indicates if the input file is converted to PNG, i.e. if it
+    * is a GIF, BMP or TIFF file.
+    */
+   private boolean _conversion;
+
+   /**
+    * The size of the input file in bytes, or -1 if unknown.
+    */
+   private long _inSize;
+
+   /**
+    * The modification time of the input file, or -1 if unknown.
+    */
+   private long _inLastModified;
+
+   /**
+    * The estimated cost of optimizing the file, see
+    * {@link TimeOutModel#cost(long,PNGHeader)}.
+    */
+   private long _cost;
+
+   /**
+    * The wall clock time spent processing the file, in milliseconds, or -1
+    * if unknown.
+    */
+   private long _duration;
+
+   /**
+    * The CPU time spent by the worker thread processing the file, in
+    * milliseconds, or -1 if unknown.
+    */
+   private long _cpuTime;
+
+   /**
+    * The CPU time spent by child processes processing the file, in
+    * milliseconds, or -1 if unknown.
+    */
+   private long _childCpuTime;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the name of the input file.
+    *
+    * @return
+    *    the name of the input file, relative to the source directory,
+    *    never <code>null</code>.
+    */
+   String getFileName() {
+      return _fileName;
+   }
+
+   /**
+    * Marks the file as selected for processing, by setting the input and
+    * output file.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>inFile == null || outFile == null</code>.
+    */
+   void setFiles(File inFile, File outFile) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (inFile == null) {
+         throw new IllegalArgumentException("inFile == null");
+      } else if (outFile == null) {
+         throw new IllegalArgumentException("outFile == null");
+      }
+
+      _inFile  = inFile;
+      _outFile = outFile;
+   }
+
+   /**
+    * Checks if the file is selected for processing.
+    *
+    * @return
+    *    <code>true</code> if {@link #setFiles(File,File)} has been called;
+    *    <code>false</code> otherwise.
+    */
+   boolean isSelected() {
+      return _inFile != null;
+   }
+
+   /**
+    * Returns the input file, if the file is selected for processing.
+    *
+    * @return
+    *    the input file, or <code>null</code> if not selected.
+    */
+   File getInFile() {
+      return _inFile;
+   }
+
+   /**
+    * Returns the output file, if the file is selected for processing.
+    *
+    * @return
+    *    the output file, or <code>null</code> if not selected.
+    */
+   File getOutFile() {
+      return _outFile;
+   }
+
+   /**
+    * Sets the key of this file in the optimization cache.
+    *
+    * @param key
+    *    the cache key, can be <code>null</code>.
+    */
+   void setCacheKey(String key) {
+      _cacheKey = key;
+   }
+
+   /**
+    * Returns the key of this file in the optimization cache.
+    *
+    * @return
+    *    the cache key, or <code>null</code> if it has not been determined.
+    */
+   String getCacheKey() {
+      return _cacheKey;
+   }
+
+   /**
+    * Records a log message.
+    *
+    * @param message
+    *    the message to log, cannot be <code>null</code>.
+    *
+    * @param level
+    *    the log level, e.g. {@link org.apache.tools.ant.Project#MSG_VERBOSE}.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>message == null</code>.
+    */
+   void log(String message, int level) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (message == null) {
+         throw new IllegalArgumentException("message == null");
+      }
+
+      _messages.add(message);
+      _levels.add(level);
+   }
+
+   /**
+    * Outputs all recorded log messages through the specified task, in the
+    * order they were recorded.
+    *
+    * @param task
+    *    the task to log through, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>task == null</code>.
+    */
+   void replayLog(Task task) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (task == null) {
+         throw new IllegalArgumentException("task == null");
+      }
+
+      for (int i = 0; i < _messages.size(); i++) {
+         task.log(_messages.get(i), _levels.get(i));
+      }
+   }
+
+   /**
+    * Registers a failure. This can be called more than once for the same
+    * file, see {@link #getFailedCount()}.
+    */
+   void failed() {
+      _failedCount++;
+   }
+
+   /**
+    * Registers that the file was optimized.
+    */
+   void optimized() {
+      _optimizeCount++;
+   }
+
+   /**
+    * Registers that the file was copied.
+    */
+   void copied() {
+      _copyCount++;
+   }
+
+   /**
+    * Registers that the original file was kept, since the optimized file
+    * is not smaller than the original.
+    */
+   void kept() {
+      _keptCount++;
+      _skipReason = "not-smaller";
+   }
+
+   /**
+    * Registers that the file was skipped.
+    *
+    * @param reason
+    *    short identifier of the reason the file was skipped, e.g.
+    *    <code>"output-newer"</code>, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>reason == null</code>.
+    */
+   void skipped(String reason) throws IllegalArgumentException {
+
+      // Check preconditions
+      if (reason == null) {
+         throw new IllegalArgumentException("reason == null");
+      }
+
+      _skippedCount++;
+      _skipReason = reason;
+   }
+
+   /**
+    * Returns the reason the file was skipped or not optimized.
+    *
+    * @return
+    *    the reason, or <code>null</code> if the file was not skipped.
+    */
+   String getSkipReason() {
+      return _skipReason;
+   }
+
+   /**
+    * Registers that the file was not optimized because the time budget was
+    * exhausted. The file is expected to be copied instead.
+    */
+   void overBudget() {
+      _overBudget = true;
+      _skipReason = "budget";
+   }
+
+   /**
+    * Checks if the file was not optimized because the time budget was
+    * exhausted.
+    *
+    * @return
+    *    <code>true</code> if {@link #overBudget()} was called;
+    *    <code>false</code> otherwise.
+    */
+   boolean isOverBudget() {
+      return _overBudget;
+   }
+
+   /**
+    * Registers that a command optimizing the file was killed because it
+    * exceeded its time-out, which may have been cut short by the time
+    * budget.
+    */
+   void timedOut() {
+      _timedOut = true;
+   }
+
+   /**
+    * Checks if a command optimizing the file was killed because it exceeded
+    * its time-out.
+    *
+    * @return
+    *    <code>true</code> if {@link #timedOut()} was called;
+    *    <code>false</code> otherwise.
+    */
+   boolean isTimedOut() {
+      return _timedOut;
+   }
+
+   /**
+    * Registers that the file was not optimized because the predicted
+    * savings are too low. The file is expected to be copied instead.
+    */
+   void lowYield() {
+      _lowYield   = true;
+      _skipReason = "low-yield";
+   }
+
+   /**
+    * Checks if the file was not optimized because the predicted savings are
+    * too low.
+    *
+    * @return
+    *    <code>true</code> if {@link #lowYield()} was called;
+    *    <code>false</code> otherwise.
+    */
+   boolean isLowYield() {
+      return _lowYield;
+   }
+
+   /**
+    * Sets whether the input file is converted to PNG. Such a file cannot be
+    * copied instead of being optimized.
+    *
+    * @param conversion
+    *    <code>true</code> if the input file is not a PNG file and is
+    *    converted.
+    */
+   void setConversion(boolean conversion) {
+      _conversion = conversion;
+   }
+
+   /**
+    * Checks if the input file is converted to PNG.
+    *
+    * @return
+    *    <code>true</code> if the input file is not a PNG file and is
+    *    converted; <code>false</code> otherwise.
+    */
+   boolean isConversion() {
+      return _conversion;
+   }
+
+   /**
+    * Sets the size of the input file.
+    *
+    * @param size
+    *    the size in bytes, or -1 if unknown.
+    */
+   void setInSize(long size) {
+      _inSize = size;
+   }
+
+   /**
+    * Returns the size of the input file.
+    *
+    * @return
+    *    the size in bytes, or -1 if unknown.
+    */
+   long getInSize() {
+      return _inSize;
+   }
+
+   /**
+    * Sets the modification time of the input file, as it was when the file
+    * was selected.
+    *
+    * @param lastModified
+    *    the modification time, or -1 if unknown.
+    */
+   void setInLastModified(long lastModified) {
+      _inLastModified = lastModified;
+   }
+
+   /**
+    * Returns the modification time of the input file, as it was when the
+    * file was selected.
+    *
+    * @return
+    *    the modification time, or -1 if unknown.
+    */
+   long getInLastModified() {
+      return _inLastModified;
+   }
+
+   /**
+    * Returns the size of the output file, if the file was optimized,
+    * kept or copied.
+    *
+    * @return
+    *    the size in bytes, or -1 if there is no output file.
+    */
+   long getOutSize() {
+      boolean written = _failedCount == 0 && (_optimizeCount > 0 || _keptCount > 0 || _copyCount > 0);
+      return (written && _outFile.exists()) ? _outFile.length() : -1L;
+   }
+
+   /**
+    * Sets the estimated cost of optimizing the file.
+    *
+    * @param cost
+    *    the estimated cost, see {@link TimeOutModel#cost(long,PNGHeader)}.
+    */
+   void setCost(long cost) {
+      _cost = cost;
+   }
+
+   /**
+    * Returns the estimated cost of optimizing the file.
+    *
+    * @return
+    *    the estimated cost, at least 1 if set; 1 by default.
+    */
+   long getCost() {
+      return _cost;
+   }
+
+   /**
+    * Sets the time spent processing the file.
+    *
+    * @param duration
+    *    the wall clock time, in milliseconds, or -1 if unknown.
+    *
+    * @param cpuTime
+    *    the CPU time of the worker thread, in milliseconds, or -1 if
+    *    unknown.
+    *
+    * @param childCpuTime
+    *    the CPU time of the child processes, in milliseconds, or -1 if
+    *    unknown.
+    */
+   void setTimes(long duration, long cpuTime, long childCpuTime) {
+      _duration     = duration;
+      _cpuTime      = cpuTime;
+      _childCpuTime = childCpuTime;
+   }
+
+   /**
+    * Returns the wall clock time spent processing the file.
+    *
+    * @return
+    *    the time in milliseconds, or -1 if unknown.
+    */
+   long getDuration() {
+      return _duration;
+   }
+
+   /**
+    * Returns the CPU time spent by the worker thread processing the file.
+    *
+    * @return
+    *    the time in milliseconds, or -1 if unknown.
+    */
+   long getCpuTime() {
+      return _cpuTime;
+   }
+
+   /**
+    * Returns the CPU time spent by child processes processing the file.
+    *
+    * @return
+    *    the time in milliseconds, or -1 if unknown.
+    */
+   long getChildCpuTime() {
+      return _childCpuTime;
+   }
+
+   /**
+    * Returns the action taken for the file.
+    *
+    * @return
+    *    <code>"failed"</code>, <code>"optimized"</code>, <code>"kept"</code>,
+    *    <code>"copied"</code> or <code>"skipped"</code>, or
+    *    <code>null</code> if nothing was done with the file at all.
+    */
+   String getAction() {
+      if (_failedCount > 0) {
+         return "failed";
+      } else if (_optimizeCount > 0) {
+         return "optimized";
+      } else if (_keptCount > 0) {
+         return "kept";
+      } else if (_copyCount > 0) {
+         return "copied";
+      } else if (_skippedCount > 0) {
+         return "skipped";
+      } else {
+         return null;
+      }
+   }
+
+   /**
+    * Returns the number of failures registered for the file, see
+    * {@link #failed()}.
+    *
+    * @return
+    *    the number of failures, 0 or higher; a single file can fail more
+    *    than once, e.g. when both the optimization and the fallback copy
+    *    fail.
+    */
+   int getFailedCount() {
+      return _failedCount;
+   }
+
+   /**
+    * Returns the number of times the file was registered as optimized, see
+    * {@link #optimized()}.
+    *
+    * @return
+    *    the number of times, either 0 or 1.
+    */
+   int getOptimizeCount() {
+      return _optimizeCount;
+   }
+
+   /**
+    * Returns the number of times the file was registered as copied, see
+    * {@link #copied()}.
+    *
+    * @return
+    *    the number of times, either 0 or 1.
+    */
+   int getCopyCount() {
+      return _copyCount;
+   }
+
+   /**
+    * Returns the number of times the original of the file was registered as
+    * kept, see {@link #kept()}.
+    *
+    * @return
+    *    the number of times, either 0 or 1.
+    */
+   int getKeptCount() {
+      return _keptCount;
+   }
+
+   /**
+    * Returns the number of times the file was registered as skipped, see
+    * {@link #skipped(String)}.
+    *
+    * @return
+    *    the number of times, either 0 or 1.
+    */
+   int getSkippedCount() {
+      return _skippedCount;
+   }
+}
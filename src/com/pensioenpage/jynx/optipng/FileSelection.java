@@ -0,0 +1,259 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.apache.tools.ant.Project.MSG_VERBOSE;
+import static org.apache.tools.ant.Project.MSG_WARN;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.quote;
+
+/**
+ * Selection of the input files to process. For each file found in the
+ * source directory, this decides whether it is processed at all, based on
+ * its attributes, the output file, the manifest and the format of its
+ * contents, and determines the output file.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class FileSelection extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * Regular expression for the extension of a file name, which is replaced
+    * by <code>".png"</code> when converting an image.
+    */
+   private static final Pattern EXTENSION = Pattern.compile("\\.[a-zA-Z]+$");
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines whether the specified input file should be processed at
+    * all. If it should, then the input and output file are set on the
+    * returned result, otherwise the reason for skipping it is logged.
+    *
+    * <p>All decisions are based on a single read of the attributes of the
+    * input file and, unless overwriting, of the output file, since on
+    * network file systems each of these reads is a round trip. The format
+    * of the input file is determined from its first few bytes, which are
+    * read only once as well, and only for files that pass all other
+    * checks.
+    *
+    * <p>A file that is converted is skipped if its output file would
+    * collide with that of a PNG file in the source directory or with that
+    * of another converted file.
+    *
+    * @param inFileName
+    *    the name of the input file, relative to the source directory,
+    *    cannot be <code>null</code>.
+    *
+    * @param inAttributes
+    *    the attributes of the input file, or <code>null</code> if these
+    *    should be read.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @return
+    *    the result, never <code>null</code>.
+    */
+   static FileResult select(String inFileName, BasicFileAttributes inAttributes, Execution execution) {
+
+      FileResult result = new FileResult(inFileName);
+
+      // Ignore temporary files, which may be written to while scanning
+      if (Copier.isTemporary(inFileName)) {
+         return result;
+      }
+
+      // Make sure the input file exists
+      File inFile = new File(execution._sourceDir, inFileName);
+      if (inAttributes == null && (inAttributes = readAttributes(inFile)) == null) {
+         return result;
+      }
+
+      // Record the input size, for the report
+      long       inSize = inAttributes.size();
+      long lastModified = inAttributes.lastModifiedTime().toMillis();
+      result.setInSize(inSize);
+      result.setInLastModified(lastModified);
+
+      // Skip each empty file
+      if (inSize < 1L) {
+         result.log("Skipping " + quote(inFileName) + " because the file is completely empty.", MSG_VERBOSE);
+         result.skipped("empty");
+         return result;
+      }
+
+      // Determine the output file for a PNG file; the extension ".png" is
+      // normalized to lower case
+      String outFileName;
+      if (inFileName.regionMatches(true, inFileName.length() - 4, ".png", 0, 4)) {
+         outFileName = inFileName.substring(0, inFileName.length() - 4) + ".png";
+      } else {
+         outFileName = inFileName;
+      }
+      File outFile = new File(execution._destDir, outFileName);
+
+      // Skip this file is the output file exists and is newer
+      if (isOutputNewer(outFile, lastModified, execution)) {
+         result.log("Skipping " + quote(inFileName) + " because output file is newer.", MSG_VERBOSE);
+         result.skipped("output-newer");
+         return result;
+
+      // Skip each file that was already optimized in-place
+      } else if (execution._manifest != null && isUnchanged(execution._manifest, inFileName, inFile, inSize, lastModified, result)) {
+         result.log("Skipping " + quote(inFileName) + " because the file is already optimized.", MSG_VERBOSE);
+         result.skipped("already-optimized");
+         return result;
+      }
+
+      // Only now determine the file format from the contents, not from the
+      // name, since this requires reading the file
+      byte[]   bytes = new byte[ImageFormat.HEADER_LENGTH];
+      ImageFormat format;
+      try {
+         format = ImageFormat.detect(bytes, ImageFormat.readHeader(inFile, bytes));
+      } catch (IOException cause) {
+         format = null;
+      }
+      boolean conversion = format != null && format != ImageFormat.PNG;
+      if (format == null || (conversion && ! execution._convert)) {
+         result.log("Skipping " + quote(inFileName) + " because the file is not a PNG file" + (execution._convert ? ", nor a GIF, BMP or TIFF file." : "."), MSG_VERBOSE);
+         result.skipped("not-png");
+         return result;
+      }
+
+      // Converted files get the extension ".png", which changes the output
+      // file, so check it again
+      if (conversion) {
+         Matcher extension = EXTENSION.matcher(inFileName);
+         outFileName = extension.find() ? extension.replaceFirst(".png") : inFileName + ".png";
+         outFile     = new File(execution._destDir, outFileName);
+
+         // A converted file must not overwrite the output of a PNG file with
+         // the same base name (e.g. "a.gif" and "a.png"), nor that of
+         // another converted file (e.g. "a.gif" and "a.bmp")
+         String pngFileName = outFileName.substring(0, outFileName.length() - 4);
+         if (new File(execution._sourceDir, outFileName).exists() || new File(execution._sourceDir, pngFileName + ".PNG").exists() || ! execution._convertedNames.add(outFileName)) {
+            result.log("Skipping " + quote(inFileName) + " because another file is written to " + quote(outFileName) + '.', MSG_WARN);
+            result.skipped("output-collision");
+            return result;
+         } else if (isOutputNewer(outFile, lastModified, execution)) {
+            result.log("Skipping " + quote(inFileName) + " because output file is newer.", MSG_VERBOSE);
+            result.skipped("output-newer");
+            return result;
+         }
+      }
+
+      // Otherwise the file should be processed
+      result.setFiles(inFile, outFile);
+      result.setConversion(conversion);
+
+      // Estimate the cost from the image header, for the time-out
+      result.setCost(TimeOutModel.cost(inSize, conversion ? null : PNGHeader.parse(bytes, bytes.length)));
+
+      return result;
+   }
+
+   /**
+    * Reads the basic attributes of the specified file, following symbolic
+    * links.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the attributes, or <code>null</code> if the file does not exist or
+    *    its attributes cannot be read.
+    */
+   private static BasicFileAttributes readAttributes(File file) {
+      try {
+         return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      } catch (IOException cause) {
+         return null;
+      }
+   }
+
+   /**
+    * Checks if the specified output file exists and is newer than the input
+    * file. If overwriting, the output file is not checked at all.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param lastModified
+    *    the modification time of the input file.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the output file should be left alone;
+    *    <code>false</code> otherwise.
+    */
+   private static boolean isOutputNewer(File outFile, long lastModified, Execution execution) {
+      BasicFileAttributes outAttributes = execution._overwrite ? null : readAttributes(outFile);
+      return outAttributes != null && outAttributes.lastModifiedTime().toMillis() > lastModified;
+   }
+
+   /**
+    * Checks if the specified file is recorded in the manifest as already
+    * optimized and has not changed since.
+    *
+    * @param manifest
+    *    the manifest, cannot be <code>null</code>.
+    *
+    * @param inFileName
+    *    the name of the file, relative to the source directory, cannot be
+    *    <code>null</code>.
+    *
+    * @param inFile
+    *    the file, cannot be <code>null</code>.
+    *
+    * @param inSize
+    *    the current size of the file, in bytes.
+    *
+    * @param lastModified
+    *    the current modification time of the file.
+    *
+    * @param result
+    *    the result for the file, used for logging, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the file is unchanged since it was optimized;
+    *    <code>false</code> otherwise.
+    */
+   private static boolean isUnchanged(Manifest manifest, String inFileName, File inFile, long inSize, long lastModified, FileResult result) {
+      try {
+         return manifest.isUnchanged(inFileName, inFile, inSize, lastModified);
+      } catch (IOException cause) {
+         result.log("Unable to compare " + quote(inFileName) + " with manifest: " + cause.getMessage(), MSG_WARN);
+         return false;
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>FileSelection</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private FileSelection() {
+      // empty
+   }
+}
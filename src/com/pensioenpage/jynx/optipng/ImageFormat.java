@@ -0,0 +1,139 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The image formats that are recognized when selecting files. The format of
+ * a file is determined from its first bytes only, not from its name, so
+ * that files with a misleading extension are treated according to their
+ * actual contents.
+ *
+ * <p>Besides PNG itself, the formats that OptiPNG can convert to PNG are
+ * recognized.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+enum ImageFormat {
+
+   /**
+    * Portable Network Graphics, with a valid <code>IHDR</code> chunk.
+    */
+   PNG,
+
+   /**
+    * Graphics Interchange Format, version 87a or 89a.
+    */
+   GIF,
+
+   /**
+    * Windows bitmap.
+    */
+   BMP,
+
+   /**
+    * Tagged Image File Format, either byte order.
+    */
+   TIFF;
+
+   /**
+    * The number of bytes at the start of a file that are needed to
+    * determine its format and, for PNG files, to parse the header; see
+    * {@link PNGHeader#parse(byte[],int)}.
+    */
+   static final int HEADER_LENGTH = PNGHeader.LENGTH;
+
+   /**
+    * Reads the first bytes of the specified file, using a single positional
+    * read.
+    *
+    * @param file
+    *    the file to read, cannot be <code>null</code>.
+    *
+    * @param bytes
+    *    the buffer to read into, cannot be <code>null</code>; typically
+    *    {@link #HEADER_LENGTH} bytes long.
+    *
+    * @return
+    *    the number of bytes read, which is less than the length of the
+    *    buffer only if the file is shorter.
+    *
+    * @throws IOException
+    *    if the file cannot be read.
+    */
+   static int readHeader(File file, byte[] bytes) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+         while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // continue reading
+         }
+      } finally {
+         channel.close();
+      }
+      return buffer.position();
+   }
+
+   /**
+    * Determines the format from the first bytes of a file.
+    *
+    * @param bytes
+    *    the first bytes of the file, cannot be <code>null</code>.
+    *
+    * @param count
+    *    the number of valid bytes in <code>bytes</code>.
+    *
+    * @return
+    *    the format, or <code>null</code> if it is not recognized.
+    */
+   static ImageFormat detect(byte[] bytes, int count) {
+      if (PNGHeader.parse(bytes, count) != null) {
+         return PNG;
+      } else if (startsWith(bytes, count, "GIF87a") || startsWith(bytes, count, "GIF89a")) {
+         return GIF;
+
+      // The "BM" signature is short, so the size of the DIB header that
+      // follows the 14-byte file header is checked as well
+      } else if (startsWith(bytes, count, "BM") && count >= 18) {
+         int size = (bytes[14] & 0xff) | ((bytes[15] & 0xff) << 8) | ((bytes[16] & 0xff) << 16) | ((bytes[17] & 0xff) << 24);
+         return (size == 12 || size == 40 || size == 52 || size == 56 || size == 64 || size == 108 || size == 124) ? BMP : null;
+      } else if (startsWith(bytes, count, "II*\u0000") || startsWith(bytes, count, "MM\u0000*")) {
+         return TIFF;
+      } else {
+         return null;
+      }
+   }
+
+   /**
+    * Checks if the specified bytes start with the specified ASCII
+    * characters.
+    *
+    * @param bytes
+    *    the bytes, cannot be <code>null</code>.
+    *
+    * @param count
+    *    the number of valid bytes in <code>bytes</code>.
+    *
+    * @param prefix
+    *    the characters, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the bytes start with the characters;
+    *    <code>false</code> otherwise.
+    */
+   private static boolean startsWith(byte[] bytes, int count, String prefix) {
+      if (count < prefix.length()) {
+         return false;
+      }
+      for (int i = 0; i < prefix.length(); i++) {
+         if (bytes[i] != (byte) prefix.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+}
@@ -0,0 +1,40 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An {@link Optimizer} that runs inside the JVM. Such an optimizer is always
+ * available, so no version probe is needed.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public interface InProcessOptimizer extends Optimizer {
+
+   /**
+    * Returns the version of this optimizer. This is part of the key for the
+    * optimization cache, so it should change whenever the output of this
+    * optimizer changes.
+    *
+    * @return
+    *    the version, never <code>null</code>.
+    */
+   String getVersion();
+
+   /**
+    * Optimizes the specified file.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>; can be the same as
+    *    <code>inFile</code>.
+    *
+    * @throws IOException
+    *    if the input file cannot be read or optimized, or if the output file
+    *    cannot be written.
+    */
+   void optimize(File inFile, File outFile) throws IOException;
+}
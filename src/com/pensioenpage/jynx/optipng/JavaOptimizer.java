@@ -0,0 +1,666 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless PNG optimizer that runs inside the JVM. The image data is
+ * decompressed, then each combination of a row filter method and a
+ * {@link Deflater} strategy is tried, and the smallest result is written.
+ * All chunks other than <code>IDAT</code> are copied unchanged.
+ *
+ * <p>For interlaced images, the existing row filters are kept and only the
+ * deflate strategies are tried.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class JavaOptimizer extends Object implements InProcessOptimizer {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of this optimizer: <code>"java"</code>.
+    */
+   static final String NAME = "java";
+
+   /**
+    * The version of this optimizer. Should be changed whenever the output of
+    * this optimizer changes.
+    */
+   static final String VERSION = "1";
+
+   /**
+    * Pseudo filter type that selects the filter for each row adaptively,
+    * using the minimum sum of absolute differences heuristic.
+    */
+   private static final int ADAPTIVE_FILTER = 5;
+
+   /**
+    * The deflate strategies to try.
+    */
+   private static final int[] STRATEGIES = { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY };
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Optimizes the specified PNG image.
+    *
+    * @param input
+    *    the contents of the PNG file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the optimized contents, never <code>null</code>; can be larger than
+    *    the input.
+    *
+    * @throws IOException
+    *    if the input is not a valid PNG file.
+    */
+   static byte[] optimize(byte[] input) throws IOException {
+
+      // Parse the chunks
+      List<Chunk> chunks = parseChunks(input);
+      Chunk         ihdr = chunks.get(0);
+      if (! "IHDR".equals(ihdr._type) || ihdr._data.length != 13) {
+         throw new IOException("First chunk is not a valid IHDR chunk.");
+      }
+
+      // Interpret the header
+      int     width = readInt(ihdr._data, 0);
+      int    height = readInt(ihdr._data, 4);
+      int  bitDepth = ihdr._data[8]  & 0xff;
+      int colorType = ihdr._data[9]  & 0xff;
+      int interlace = ihdr._data[12] & 0xff;
+      int  channels;
+      switch (colorType) {
+         case 0: channels = 1; break;
+         case 2: channels = 3; break;
+         case 3: channels = 1; break;
+         case 4: channels = 2; break;
+         case 6: channels = 4; break;
+         default: throw new IOException("Unsupported color type " + colorType + '.');
+      }
+      if (! isValidBitDepth(colorType, bitDepth)) {
+         throw new IOException("Invalid bit depth " + bitDepth + " for color type " + colorType + '.');
+      }
+      if (interlace > 1) {
+         throw new IOException("Unsupported interlace method " + interlace + '.');
+      }
+      if (width < 1 || height < 1) {
+         throw new IOException("Invalid image dimensions " + width + 'x' + height + '.');
+      }
+      int bitsPerPixel = channels * bitDepth;
+      int          bpp = Math.max(1, bitsPerPixel / 8);
+      long    rowBytes = ((long) width * bitsPerPixel + 7L) / 8L;
+      long  dataLength = (interlace == 0) ? (rowBytes + 1L) * height : interlacedLength(width, height, bitsPerPixel);
+      if (dataLength > Integer.MAX_VALUE) {
+         throw new IOException("Image dimensions " + width + 'x' + height + " are too large.");
+      }
+
+      // Decompress the concatenated image data, which can never be larger
+      // than the header implies
+      ByteArrayOutputStream idat = new ByteArrayOutputStream();
+      for (Chunk chunk : chunks) {
+         if ("IDAT".equals(chunk._type)) {
+            idat.write(chunk._data, 0, chunk._data.length);
+         }
+      }
+      byte[] filtered = inflate(idat.toByteArray(), (int) dataLength);
+      idat = null;
+      if (filtered.length < dataLength) {
+         throw new IOException("Image data is truncated.");
+      }
+
+      // Find the smallest compressed result; the filtered variants are
+      // created one at a time, to limit the memory use for large images
+      byte[] best;
+      if (interlace == 0) {
+         byte[] raw = unfilter(filtered, (int) rowBytes, height, bpp);
+         filtered   = null;
+         best       = null;
+         for (int filterType = 0; filterType <= ADAPTIVE_FILTER; filterType++) {
+            best = deflateSmallest(filter(raw, (int) rowBytes, height, bpp, filterType), best);
+         }
+      } else {
+         best = deflateSmallest(filtered, null);
+      }
+
+      // Write the result, replacing all IDAT chunks by a single one
+      ByteArrayOutputStream out = new ByteArrayOutputStream(input.length);
+      out.write(PNGHeader.SIGNATURE, 0, PNGHeader.SIGNATURE.length);
+      boolean idatWritten = false;
+      for (Chunk chunk : chunks) {
+         if (! "IDAT".equals(chunk._type)) {
+            writeChunk(out, chunk._type, chunk._data);
+         } else if (! idatWritten) {
+            writeChunk(out, "IDAT", best);
+            idatWritten = true;
+         }
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * Checks if the specified bit depth is allowed for the specified color
+    * type, as defined by the PNG specification. The filters assume a valid
+    * combination, so the header must be checked before the image data is
+    * touched.
+    *
+    * @param colorType
+    *    the color type, one of 0, 2, 3, 4 or 6.
+    *
+    * @param bitDepth
+    *    the bit depth.
+    *
+    * @return
+    *    <code>true</code> if the combination is valid;
+    *    <code>false</code> otherwise.
+    */
+   static boolean isValidBitDepth(int colorType, int bitDepth) {
+      switch (colorType) {
+         case 0:
+            return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+         case 3:
+            return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+         case 2:
+         case 4:
+         case 6:
+            return bitDepth == 8 || bitDepth == 16;
+         default:
+            return false;
+      }
+   }
+
+   /**
+    * Reads the complete contents of the specified file.
+    *
+    * @param file
+    *    the file to read, cannot be <code>null</code>.
+    *
+    * @return
+    *    the contents, never <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   private static byte[] readFile(File file) throws IOException {
+      long length = file.length();
+      if (length > Integer.MAX_VALUE) {
+         throw new IOException("File is too large.");
+      }
+      byte[] bytes = new byte[(int) length];
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+         in.readFully(bytes);
+      } finally {
+         in.close();
+      }
+      return bytes;
+   }
+
+   /**
+    * Parses the chunks in the specified PNG file contents. The CRC of each
+    * chunk is not checked. Parsing stops after the <code>IEND</code> chunk.
+    *
+    * @param input
+    *    the contents of the PNG file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the chunks, never <code>null</code> and never empty.
+    *
+    * @throws IOException
+    *    if the input is not a valid PNG file.
+    */
+   private static List<Chunk> parseChunks(byte[] input) throws IOException {
+
+      // Check the signature
+      if (input.length < PNGHeader.SIGNATURE.length) {
+         throw new IOException("Not a PNG file.");
+      }
+      for (int i = 0; i < PNGHeader.SIGNATURE.length; i++) {
+         if (input[i] != PNGHeader.SIGNATURE[i]) {
+            throw new IOException("Not a PNG file.");
+         }
+      }
+
+      List<Chunk> chunks = new ArrayList<Chunk>();
+      int position = PNGHeader.SIGNATURE.length;
+      boolean  end = false;
+      while (! end) {
+         if (position + 12 > input.length) {
+            throw new IOException("PNG file is truncated.");
+         }
+         int length = readInt(input, position);
+         if (length < 0 || position + 12L + length > input.length) {
+            throw new IOException("PNG file is truncated.");
+         }
+         String type = new String(input, position + 4, 4, "US-ASCII");
+         byte[] data = new byte[length];
+         System.arraycopy(input, position + 8, data, 0, length);
+         chunks.add(new Chunk(type, data));
+         position += 12 + length;
+         end = "IEND".equals(type);
+      }
+      return chunks;
+   }
+
+   /**
+    * Writes a single chunk, including the length and the CRC.
+    *
+    * @param out
+    *    the stream to write to, cannot be <code>null</code>.
+    *
+    * @param type
+    *    the chunk type, cannot be <code>null</code>.
+    *
+    * @param data
+    *    the chunk data, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data)
+   throws IOException {
+      byte[] typeBytes = type.getBytes("US-ASCII");
+      CRC32 crc = new CRC32();
+      crc.update(typeBytes);
+      crc.update(data);
+      writeInt(out, data.length);
+      out.write(typeBytes);
+      out.write(data);
+      writeInt(out, (int) crc.getValue());
+   }
+
+   private static int readInt(byte[] bytes, int offset) {
+      return ((bytes[offset]     & 0xff) << 24)
+           | ((bytes[offset + 1] & 0xff) << 16)
+           | ((bytes[offset + 2] & 0xff) <<  8)
+           |  (bytes[offset + 3] & 0xff);
+   }
+
+   private static void writeInt(ByteArrayOutputStream out, int value) {
+      out.write(value >>> 24);
+      out.write(value >>> 16);
+      out.write(value >>>  8);
+      out.write(value);
+   }
+
+   /**
+    * Determines the length of the decompressed image data of an interlaced
+    * image: for each of the 7 passes of the Adam7 method that contains any
+    * pixels, one filter type byte per row plus the pixel data.
+    *
+    * @param width
+    *    the width of the image, at least 1.
+    *
+    * @param height
+    *    the height of the image, at least 1.
+    *
+    * @param bitsPerPixel
+    *    the number of bits per pixel.
+    *
+    * @return
+    *    the length in bytes.
+    */
+   private static long interlacedLength(int width, int height, int bitsPerPixel) {
+      int[] xStart = { 0, 4, 0, 2, 0, 1, 0 };
+      int[] yStart = { 0, 0, 4, 0, 2, 0, 1 };
+      int[] xStep  = { 8, 8, 4, 4, 2, 2, 1 };
+      int[] yStep  = { 8, 8, 8, 4, 4, 2, 2 };
+      long length = 0L;
+      for (int pass = 0; pass < 7; pass++) {
+         long passWidth  = ((long) width  - xStart[pass] + xStep[pass] - 1) / xStep[pass];
+         long passHeight = ((long) height - yStart[pass] + yStep[pass] - 1) / yStep[pass];
+         if (passWidth > 0L && passHeight > 0L) {
+            length += ((passWidth * bitsPerPixel + 7L) / 8L + 1L) * passHeight;
+         }
+      }
+      return length;
+   }
+
+   /**
+    * Decompresses zlib data.
+    *
+    * @param compressed
+    *    the compressed data, cannot be <code>null</code>.
+    *
+    * @param limit
+    *    the maximum length of the decompressed data.
+    *
+    * @return
+    *    the decompressed data, never <code>null</code>.
+    *
+    * @throws IOException
+    *    if the data is corrupt, or if it decompresses to more than
+    *    <code>limit</code> bytes.
+    */
+   private static byte[] inflate(byte[] compressed, int limit) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(compressed);
+         ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(limit, compressed.length * 4L));
+         byte[] buffer = new byte[64 * 1024];
+         while (! inflater.finished()) {
+            int count = inflater.inflate(buffer);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               throw new IOException("Image data is truncated.");
+            } else if (out.size() + count > limit) {
+               throw new IOException("Image data is larger than " + limit + " byte(s), as implied by the header.");
+            }
+            out.write(buffer, 0, count);
+         }
+         return out.toByteArray();
+      } catch (DataFormatException cause) {
+         throw new IOException("Image data is corrupt: " + cause.getMessage());
+      } finally {
+         inflater.end();
+      }
+   }
+
+   /**
+    * Compresses data using each of the {@link #STRATEGIES} and returns the
+    * smallest result, unless the specified result so far is smaller still.
+    *
+    * @param data
+    *    the data to compress, cannot be <code>null</code>.
+    *
+    * @param best
+    *    the smallest result so far, or <code>null</code> if none.
+    *
+    * @return
+    *    the smallest result, never <code>null</code>.
+    */
+   private static byte[] deflateSmallest(byte[] data, byte[] best) {
+      for (int strategy : STRATEGIES) {
+         byte[] compressed = deflate(data, strategy);
+         if (best == null || compressed.length < best.length) {
+            best = compressed;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Compresses data using the zlib format, at the maximum compression level.
+    *
+    * @param data
+    *    the data to compress, cannot be <code>null</code>.
+    *
+    * @param strategy
+    *    the {@link Deflater} strategy.
+    *
+    * @return
+    *    the compressed data, never <code>null</code>.
+    */
+   private static byte[] deflate(byte[] data, int strategy) {
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      try {
+         deflater.setStrategy(strategy);
+         deflater.setInput(data);
+         deflater.finish();
+         ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+         byte[] buffer = new byte[64 * 1024];
+         while (! deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+         }
+         return out.toByteArray();
+      } finally {
+         deflater.end();
+      }
+   }
+
+   /**
+    * Reverses the row filters on non-interlaced image data.
+    *
+    * @param filtered
+    *    the filtered data, one filter type byte followed by
+    *    <code>rowBytes</code> bytes per row, cannot be <code>null</code>.
+    *
+    * @param rowBytes
+    *    the number of bytes per row, excluding the filter type byte.
+    *
+    * @param height
+    *    the number of rows.
+    *
+    * @param bpp
+    *    the number of bytes per complete pixel, rounding up to 1.
+    *
+    * @return
+    *    the raw image data, <code>rowBytes</code> bytes per row, never
+    *    <code>null</code>.
+    *
+    * @throws IOException
+    *    if an invalid filter type is encountered.
+    */
+   private static byte[] unfilter(byte[] filtered, int rowBytes, int height, int bpp)
+   throws IOException {
+      byte[] raw = new byte[rowBytes * height];
+      for (int y = 0; y < height; y++) {
+         int filterType = filtered[y * (rowBytes + 1)] & 0xff;
+         int        src = y * (rowBytes + 1) + 1;
+         int        dst = y * rowBytes;
+         for (int x = 0; x < rowBytes; x++) {
+            int a = (x >= bpp) ? raw[dst + x - bpp] & 0xff : 0;
+            int b = (y > 0)    ? raw[dst + x - rowBytes] & 0xff : 0;
+            int c = (x >= bpp && y > 0) ? raw[dst + x - rowBytes - bpp] & 0xff : 0;
+            int v = filtered[src + x] & 0xff;
+            switch (filterType) {
+               case 0:                                  break;
+               case 1: v += a;                          break;
+               case 2: v += b;                          break;
+               case 3: v += (a + b) >>> 1;              break;
+               case 4: v += paeth(a, b, c);             break;
+               default: throw new IOException("Invalid filter type " + filterType + '.');
+            }
+            raw[dst + x] = (byte) v;
+         }
+      }
+      return raw;
+   }
+
+   /**
+    * Applies row filters to non-interlaced image data.
+    *
+    * @param raw
+    *    the raw image data, <code>rowBytes</code> bytes per row, cannot be
+    *    <code>null</code>.
+    *
+    * @param rowBytes
+    *    the number of bytes per row.
+    *
+    * @param height
+    *    the number of rows.
+    *
+    * @param bpp
+    *    the number of bytes per complete pixel, rounding up to 1.
+    *
+    * @param filterType
+    *    the filter type to apply to all rows (0-4), or
+    *    {@link #ADAPTIVE_FILTER} to select a filter type per row.
+    *
+    * @return
+    *    the filtered data, one filter type byte followed by
+    *    <code>rowBytes</code> bytes per row, never <code>null</code>.
+    */
+   private static byte[] filter(byte[] raw, int rowBytes, int height, int bpp, int filterType) {
+      byte[] filtered = new byte[(rowBytes + 1) * height];
+      byte[]      row = new byte[rowBytes];
+      for (int y = 0; y < height; y++) {
+         int dst = y * (rowBytes + 1);
+         if (filterType == ADAPTIVE_FILTER) {
+            long bestSum = Long.MAX_VALUE;
+            for (int type = 0; type < ADAPTIVE_FILTER; type++) {
+               long sum = filterRow(raw, rowBytes, y, bpp, type, row);
+               if (sum < bestSum) {
+                  bestSum = sum;
+                  filtered[dst] = (byte) type;
+                  System.arraycopy(row, 0, filtered, dst + 1, rowBytes);
+               }
+            }
+         } else {
+            filterRow(raw, rowBytes, y, bpp, filterType, row);
+            filtered[dst] = (byte) filterType;
+            System.arraycopy(row, 0, filtered, dst + 1, rowBytes);
+         }
+      }
+      return filtered;
+   }
+
+   /**
+    * Applies a single filter type to a single row.
+    *
+    * @return
+    *    the sum of the absolute values of the filtered bytes, interpreted as
+    *    signed bytes.
+    */
+   private static long filterRow(byte[] raw, int rowBytes, int y, int bpp, int filterType, byte[] row) {
+      int  src = y * rowBytes;
+      long sum = 0L;
+      for (int x = 0; x < rowBytes; x++) {
+         int a = (x >= bpp) ? raw[src + x - bpp] & 0xff : 0;
+         int b = (y > 0)    ? raw[src + x - rowBytes] & 0xff : 0;
+         int c = (x >= bpp && y > 0) ? raw[src + x - rowBytes - bpp] & 0xff : 0;
+         int v = raw[src + x] & 0xff;
+         switch (filterType) {
+            case 1: v -= a;                 break;
+            case 2: v -= b;                 break;
+            case 3: v -= (a + b) >>> 1;     break;
+            case 4: v -= paeth(a, b, c);    break;
+            default:                        break;
+         }
+         row[x] = (byte) v;
+         sum   += Math.abs((int) row[x]);
+      }
+      return sum;
+   }
+
+   /**
+    * The Paeth predictor, as defined by the PNG specification.
+    */
+   private static int paeth(int a, int b, int c) {
+      int p  = a + b - c;
+      int pa = Math.abs(p - a);
+      int pb = Math.abs(p - b);
+      int pc = Math.abs(p - c);
+      if (pa <= pb && pa <= pc) {
+         return a;
+      } else if (pb <= pc) {
+         return b;
+      } else {
+         return c;
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>JavaOptimizer</code>.
+    */
+   public JavaOptimizer() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   // Specified by Optimizer
+   public String getName() {
+      return NAME;
+   }
+
+   // Specified by InProcessOptimizer
+   public String getVersion() {
+      return VERSION;
+   }
+
+   /**
+    * Optimizes the specified PNG file. If no smaller encoding is found, then
+    * the original contents are written to the output file.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>; can be the same as
+    *    <code>inFile</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>inFile == null || outFile == null</code>.
+    *
+    * @throws IOException
+    *    if the input file cannot be read, if it is not a valid PNG file or
+    *    if the output file cannot be written.
+    */
+   public void optimize(File inFile, File outFile)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (inFile == null) {
+         throw new IllegalArgumentException("inFile == null");
+      } else if (outFile == null) {
+         throw new IllegalArgumentException("outFile == null");
+      }
+
+      byte[] input  = readFile(inFile);
+      byte[] output = optimize(input);
+
+      OutputStream out = new FileOutputStream(outFile);
+      try {
+         out.write(output.length < input.length ? output : input);
+      } finally {
+         out.close();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * A single PNG chunk.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Chunk extends Object {
+
+      Chunk(String type, byte[] data) {
+         _type = type;
+         _data = data;
+      }
+
+      /**
+       * The chunk type, e.g. <code>"IDAT"</code>.
+       */
+      final String _type;
+
+      /**
+       * The chunk data, excluding length, type and CRC.
+       */
+      final byte[] _data;
+   }
+}
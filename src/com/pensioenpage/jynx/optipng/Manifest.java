@@ -0,0 +1,296 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manifest of files that have already been optimized in-place. For each
+ * file, the size, the modification time and the SHA-256 digest of the
+ * optimized contents are recorded, together with a digest of the salt that
+ * identifies the command version and options, as used by the
+ * {@link OptimizationCache}. A file whose salt, size and modification time
+ * still match the recorded values is considered unchanged without reading
+ * it; only if the modification time differs, the digest is computed and
+ * compared. If the salt differs, the file is considered changed, so that
+ * it is optimized again with the new settings.
+ *
+ * <p>Entries for files that no longer exist are dropped when the manifest
+ * is saved. Entries for other files are kept, even if they were not looked
+ * up, so that several tasks with different includes can share a manifest,
+ * as long as they optimize the same directory.
+ *
+ * <p>The manifest is stored as a text file, with one line per file:
+ * <blockquote><code><em>digest</em> <em>salt</em> <em>size</em>
+ * <em>lastModified</em> <em>name</em></code></blockquote>
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Manifest extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The character encoding used for the manifest file: UTF-8.
+    */
+   private static final String ENCODING = "UTF-8";
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Manifest</code>, reading the entries from the
+    * specified file, if it exists.
+    *
+    * @param file
+    *    the manifest file, cannot be <code>null</code>.
+    *
+    * @param dir
+    *    the directory the file names are relative to, cannot be
+    *    <code>null</code>.
+    *
+    * @param salt
+    *    the salt identifying the command version and options, see
+    *    {@link OptimizationCache#salt(String,String)}, cannot be
+    *    <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>file == null || dir == null || salt == null</code>.
+    *
+    * @throws IOException
+    *    if the file exists but cannot be read.
+    */
+   Manifest(File file, File dir, String salt) throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (file == null) {
+         throw new IllegalArgumentException("file == null");
+      } else if (dir == null) {
+         throw new IllegalArgumentException("dir == null");
+      } else if (salt == null) {
+         throw new IllegalArgumentException("salt == null");
+      }
+
+      _file    = file;
+      _dir     = dir;
+      _salt    = OptimizationCache.digest(salt);
+      _entries = new ConcurrentHashMap<String,Entry>();
+      _seen    = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+      // Read the existing entries, ignoring malformed lines
+      if (file.exists()) {
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               String[] parts = line.split(" ", 5);
+               if (parts.length == 5) {
+                  try {
+                     _entries.put(parts[4], new Entry(parts[0], parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                  } catch (NumberFormatException cause) {
+                     // ignore
+                  }
+               }
+            }
+         } finally {
+            reader.close();
+         }
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The manifest file. Never <code>null</code>.
+    */
+   private final File _file;
+
+   /**
+    * The directory the file names are relative to. Never <code>null</code>.
+    */
+   private final File _dir;
+
+   /**
+    * The digest of the salt for the current settings. Never
+    * <code>null</code>.
+    */
+   private final String _salt;
+
+   /**
+    * The entries, keyed by file name. Never <code>null</code>.
+    */
+   private final Map<String,Entry> _entries;
+
+   /**
+    * The names of the files looked up or recorded since the manifest was
+    * read, which are known to exist. Never <code>null</code>.
+    */
+   private final Set<String> _seen;
+
+   /**
+    * Flag that indicates if the entries changed since they were read.
+    */
+   private volatile boolean _modified;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Checks if the specified file is unchanged since it was recorded as
+    * optimized.
+    *
+    * @param name
+    *    the name of the file, relative to the directory, cannot be
+    *    <code>null</code>.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @param size
+    *    the current size of the file, in bytes.
+    *
+    * @param lastModified
+    *    the current modification time of the file.
+    *
+    * @return
+    *    <code>true</code> if the file is recorded with the current salt and
+    *    unchanged; <code>false</code> otherwise.
+    *
+    * @throws IOException
+    *    if the digest of the file needs to be computed, but the file cannot
+    *    be read.
+    */
+   boolean isUnchanged(String name, File file, long size, long lastModified) throws IOException {
+      _seen.add(name);
+      Entry entry = _entries.get(name);
+      if (entry == null || ! entry._salt.equals(_salt)) {
+         return false;
+      }
+
+      // Cheap check first: size and modification time
+      if (entry._size != size) {
+         return false;
+      } else if (entry._lastModified == lastModified) {
+         return true;
+      }
+
+      // The file was touched, compare the contents
+      if (! entry._digest.equals(OptimizationCache.digest("", file))) {
+         return false;
+      }
+      _entries.put(name, new Entry(entry._digest, entry._salt, size, lastModified));
+      _modified = true;
+      return true;
+   }
+
+   /**
+    * Records the specified file as optimized.
+    *
+    * @param name
+    *    the name of the file, relative to the directory, cannot be
+    *    <code>null</code>.
+    *
+    * @param file
+    *    the optimized file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the file cannot be read.
+    */
+   void record(String name, File file) throws IOException {
+      String digest = OptimizationCache.digest("", file);
+      _seen.add(name);
+      _entries.put(name, new Entry(digest, _salt, file.length(), file.lastModified()));
+      _modified = true;
+   }
+
+   /**
+    * Writes the manifest to its file, if it was modified. Entries for files
+    * that no longer exist are dropped first; only the files that were
+    * neither looked up nor recorded need to be checked. The entries are
+    * written sorted by name, to a temporary file that then replaces the
+    * manifest file.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void save() throws IOException {
+      for (String name : _entries.keySet()) {
+         if (! _seen.contains(name) && ! new File(_dir, name).exists()) {
+            _entries.remove(name);
+            _modified = true;
+         }
+      }
+      if (! _modified) {
+         return;
+      }
+
+      List<String> lines = new ArrayList<String>(_entries.size());
+      for (Map.Entry<String,Entry> e : new TreeMap<String,Entry>(_entries).entrySet()) {
+         Entry entry = e.getValue();
+         lines.add(entry._digest + ' ' + entry._salt + ' ' + entry._size + ' ' + entry._lastModified + ' ' + e.getKey());
+      }
+      Copier.writeLines(_file, lines);
+      _modified = false;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * A single entry in the manifest.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Entry extends Object {
+
+      Entry(String digest, String salt, long size, long lastModified) {
+         _digest       = digest;
+         _salt         = salt;
+         _size         = size;
+         _lastModified = lastModified;
+      }
+
+      /**
+       * The SHA-256 digest of the optimized file contents.
+       */
+      final String _digest;
+
+      /**
+       * The digest of the salt that was used when the file was optimized.
+       */
+      final String _salt;
+
+      /**
+       * The size of the optimized file, in bytes.
+       */
+      final long _size;
+
+      /**
+       * The modification time of the optimized file.
+       */
+      final long _lastModified;
+   }
+}
@@ -0,0 +1,239 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@link CommandOptimizer} for OptiPNG. This is the default optimizer.
+ * For more information, see the
+ * <a href="http://optipng.sourceforge.net/">OptiPNG homepage</a>.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class OptiPNGOptimizer extends Object implements CommandOptimizer {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of this optimizer: <code>"optipng"</code>.
+    */
+   static final String NAME = "optipng";
+
+   /**
+    * Pattern that matches the version in the output of
+    * <code>optipng -version</code>. The first group is the version.
+    */
+   private static final Pattern VERSION_PATTERN = Pattern.compile("^[^0-9]*([0-9]+(\\.[0-9]+)*)");
+
+   /**
+    * Pattern that matches the line in the OptiPNG output that starts the
+    * section for a single input file. The first group is the path of the
+    * input file.
+    */
+   private static final Pattern SECTION_PATTERN = Pattern.compile("(?m)^\\*\\* Processing: (.+)$");
+
+   /**
+    * Pattern that matches an error in the OptiPNG output for a single
+    * input file.
+    */
+   private static final Pattern ERROR_PATTERN = Pattern.compile("(?m)^Error");
+
+   /**
+    * Pattern that matches the OptiPNG output indicating that a single input
+    * file has been processed successfully.
+    */
+   private static final Pattern SUCCESS_PATTERN = Pattern.compile("(?m)^Output file size|already optimized");
+
+   /**
+    * Pattern that matches a single trial in the OptiPNG output, e.g.
+    * <code>"zc = 9  zm = 8  zs = 0  f = 5"</code>. The groups are the
+    * values of the 4 parameters.
+    */
+   private static final Pattern TRIAL_PATTERN = Pattern.compile("zc\\s*=\\s*(\\d+)\\s+zm\\s*=\\s*(\\d+)\\s+zs\\s*=\\s*(\\d+)\\s+f\\s*=\\s*(\\d+)");
+
+   /**
+    * Pattern that matches an argument that sets one of the trial parameters,
+    * e.g. <code>"-zc1-9"</code>.
+    */
+   private static final Pattern TRIAL_ARGUMENT_PATTERN = Pattern.compile("^-(zc|zm|zs|f)[0-9]");
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>OptiPNGOptimizer</code>.
+    */
+   public OptiPNGOptimizer() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   // Specified by Optimizer
+   public String getName() {
+      return NAME;
+   }
+
+   // Specified by CommandOptimizer
+   public String getDefaultCommand() {
+      return OptiPNGTask.DEFAULT_COMMAND;
+   }
+
+   // Specified by CommandOptimizer
+   public String[] getVersionCommandLine(String command) {
+      return new String[] { command, "-version" };
+   }
+
+   // Specified by CommandOptimizer
+   public String parseVersion(String output, String errorOutput) {
+      Matcher matcher = VERSION_PATTERN.matcher(output);
+      return matcher.find() ? matcher.group(1) : null;
+   }
+
+   // Specified by CommandOptimizer
+   public String[] getCommandLine(String command, List<String> args, File inFile, File outFile) {
+      List<String> cmdline = new ArrayList<String>(args.size() + 7);
+      cmdline.add(command);
+      cmdline.add("-fix");
+      cmdline.add("-force");
+      cmdline.addAll(args);
+      cmdline.add("-out");
+      cmdline.add(outFile.getPath());
+      cmdline.add("--");
+      cmdline.add(inFile.getPath());
+      return cmdline.toArray(new String[cmdline.size()]);
+   }
+
+   // Specified by CommandOptimizer
+   public String checkResult(int exitValue, String output, String errorOutput) {
+
+      // A non-zero exit value or output to stderr indicates a failure
+      if (exitValue != 0 || errorOutput.trim().length() > 0) {
+         return errorOutput;
+      } else {
+         return null;
+      }
+   }
+
+   // Specified by CommandOptimizer
+   public String[] getBatchCommandLine(String command, List<String> args, List<File> inFiles, File outDir) {
+      List<String> cmdline = new ArrayList<String>(args.size() + inFiles.size() + 6);
+      cmdline.add(command);
+      cmdline.add("-fix");
+      cmdline.add("-force");
+      cmdline.addAll(args);
+      if (outDir != null) {
+         cmdline.add("-dir");
+         cmdline.add(outDir.getPath());
+      }
+      cmdline.add("--");
+      for (File inFile : inFiles) {
+         cmdline.add(inFile.getPath());
+      }
+      return cmdline.toArray(new String[cmdline.size()]);
+   }
+
+   // Specified by CommandOptimizer
+   public Map<String,String> splitBatchOutput(String output, String errorOutput) {
+      Map<String,String> sections = new HashMap<String,String>();
+      Matcher matcher = SECTION_PATTERN.matcher(output);
+      String  path    = null;
+      int     index   = 0;
+      while (matcher.find()) {
+         if (path != null) {
+            sections.put(path, output.substring(index, matcher.start()));
+         }
+         path  = matcher.group(1).trim();
+         index = matcher.end();
+      }
+      if (path != null) {
+         sections.put(path, output.substring(index));
+      }
+      return sections;
+   }
+
+   // Specified by CommandOptimizer
+   public boolean checkBatchResult(String section, boolean batchFailed) {
+      return ! ERROR_PATTERN.matcher(section).find()
+          && (! batchFailed || SUCCESS_PATTERN.matcher(section).find());
+   }
+
+   /**
+    * Determines the compression parameters that won the trials, from the
+    * output of optimizing a single file. These are the parameters listed
+    * after <code>"Selecting parameters"</code> or, if only a single trial
+    * was run, the parameters of that trial.
+    *
+    * @param output
+    *    the output of the command, cannot be <code>null</code>.
+    *
+    * @param errorOutput
+    *    the error output of the command, cannot be <code>null</code>.
+    *
+    * @return
+    *    the winning parameters as arguments, e.g.
+    *    <code>["-zc9", "-zm8", "-zs0", "-f5"]</code>, or <code>null</code>
+    *    if they cannot be determined, e.g. because the input file was
+    *    already optimized.
+    */
+   List<String> parseTrialParameters(String output, String errorOutput) {
+      for (String s : new String[] { output, errorOutput }) {
+         Matcher matcher = TRIAL_PATTERN.matcher(s);
+         int       index = s.indexOf("Selecting parameters");
+         boolean   found;
+         if (index >= 0) {
+            found = matcher.find(index);
+         } else {
+            found = matcher.find() && ! TRIAL_PATTERN.matcher(s).region(matcher.end(), s.length()).find();
+         }
+         if (found) {
+            List<String> parameters = new ArrayList<String>(4);
+            parameters.add("-zc" + matcher.group(1));
+            parameters.add("-zm" + matcher.group(2));
+            parameters.add("-zs" + matcher.group(3));
+            parameters.add("-f"  + matcher.group(4));
+            return parameters;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Replaces the trial parameters in the specified arguments by the
+    * specified ones, so that only a single trial is run.
+    *
+    * @param args
+    *    the arguments, cannot be <code>null</code>.
+    *
+    * @param parameters
+    *    the trial parameters, as returned by
+    *    {@link #parseTrialParameters(String,String)}, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    the new arguments, never <code>null</code>.
+    */
+   List<String> withTrialParameters(List<String> args, List<String> parameters) {
+      List<String> result = new ArrayList<String>(args.size() + parameters.size());
+      for (String arg : args) {
+         if (! TRIAL_ARGUMENT_PATTERN.matcher(arg).find()) {
+            result.add(arg);
+         }
+      }
+      result.addAll(parameters);
+      return result;
+   }
+}
@@ -5,21 +5,40 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import static org.apache.tools.ant.Project.MSG_ERR;
 import static org.apache.tools.ant.Project.MSG_VERBOSE;
+import static org.apache.tools.ant.Project.MSG_WARN;
 import org.apache.tools.ant.taskdefs.Execute;
 import org.apache.tools.ant.taskdefs.ExecuteStreamHandler;
 import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
 import org.apache.tools.ant.taskdefs.MatchingTask;
+import org.apache.tools.ant.taskdefs.condition.Os;
+import org.apache.tools.ant.types.Commandline;
 import org.apache.tools.ant.types.FileSet;
-import org.apache.tools.ant.util.FileUtils;
 
 /**
  * An Apache Ant task for optimizing a number of PNG files, using OptiPNG. For
@@ -37,6 +56,12 @@ import org.apache.tools.ant.util.FileUtils;
  * <dd>The time-out for each individual invocation of the command, in
  *     milliseconds. Optional, defaults to 60000 (60 seconds).
  *
+ * <dt>minTimeOut, maxTimeOut
+ * <dd>If either is set, the time-out for each file scales with its size
+ *     and pixel count, based on the throughput observed during the run,
+ *     within these bounds (in milliseconds). Optional, by default the
+ *     time-out is the same for each file.
+ *
  * <dt>dir
  * <dd>The source directory to read from.
  *     Optional, defaults to the project base directory.
@@ -56,8 +81,114 @@ import org.apache.tools.ant.util.FileUtils;
  * <dt>toDir
  * <dd>The target directory to write to.
  *     Optional, defaults to the source directory.
+ *
+ * <dt>threads
+ * <dd>The number of files to process concurrently.
+ *     Optional, defaults to the number of available processors.
+ *
+ * <dt>cacheDir
+ * <dd>Directory holding a persistent cache of optimized files, keyed by the
+ *     contents of the input file, the command version and the options.
+ *     Optional, by default no cache is used.
+ *
+ * <dt>manifest
+ * <dd>File recording the files that have already been optimized in-place,
+ *     so that these are skipped on subsequent runs, as long as they are
+ *     unchanged and the command version and options are the same. Only
+ *     used if the target directory is the source directory.
+ *     Optional, by default no manifest is used.
+ *
+ * <dt>linkMode
+ * <dd>How files are copied, when they are not optimized: <code>"none"</code>
+ *     to always copy the contents or <code>"hard"</code> to create hard
+ *     links where possible. A hard link shares its contents with the input
+ *     file, so modifying it in-place modifies the input file as well.
+ *     Optional, defaults to <code>"none"</code>.
+ *
+ * <dt>engine
+ * <dd>The optimization engine: <code>"optipng"</code> to execute the
+ *     OptiPNG command, <code>"java"</code> to optimize inside the JVM, or
+ *     the name of an {@link Optimizer} registered through
+ *     {@link java.util.ServiceLoader}.
+ *     Optional, defaults to <code>"optipng"</code>.
+ *
+ * <dt>batchSize
+ * <dd>The maximum number of files to pass to a single invocation of the
+ *     command. Optional, defaults to 1 (no batching).
+ *
+ * <dt>level
+ * <dd>The OptiPNG optimization level, 0 to 7 (<code>-o</code>).
+ *     Optional, by default the OptiPNG default is used.
+ *
+ * <dt>zc, zm, zs, filters
+ * <dd>The zlib compression levels, memory levels and strategies, and the
+ *     PNG delta filters to try (<code>-zc</code>, <code>-zm</code>,
+ *     <code>-zs</code>, <code>-f</code>), e.g. <code>"1-9"</code>.
+ *     Optional, by default these follow from the optimization level.
+ *
+ * <dt>interlace
+ * <dd>The interlace type of the output, 0 or 1 (<code>-i</code>).
+ *     Optional, by default the interlace type of the input is kept.
+ *
+ * <dt>strip
+ * <dd>Flag that indicates if all metadata should be stripped
+ *     (<code>-strip all</code>). Optional, defaults to <em>false</em>.
+ *
+ * <dt>budget
+ * <dd>The total time available for optimizing, e.g. <code>"120s"</code>.
+ *     Files with the highest expected savings per second go first; files
+ *     that are not done when the budget runs out are copied instead.
+ *     Optional, by default there is no budget.
+ *
+ * <dt>report
+ * <dd>File to write a report to, with one record per file. CSV if the name
+ *     ends in <code>".csv"</code>, JSON otherwise.
+ *     Optional, by default no report is written.
+ *
+ * <dt>trials
+ * <dd>File recording the compression parameters that won for each image,
+ *     so that subsequent runs try those first.
+ *     Optional, by default the winning parameters are not recorded.
+ *
+ * <dt>minSavings
+ * <dd>The minimum predicted savings, as a percentage of the file size, for
+ *     a file to be optimized; other files are copied instead.
+ *     Optional, by default all files are optimized.
+ *
+ * <dt>history
+ * <dd>File recording the savings achieved for each input file, used to
+ *     predict the savings of unchanged files.
+ *     Optional, by default no history is kept.
+ *
+ * <dt>probe
+ * <dd>Flag that indicates if the savings of files without history should
+ *     be estimated by recompressing part of the image data.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>streaming
+ * <dd>Flag that indicates if files should be processed while the source
+ *     directory is still being scanned.
+ *     Optional, defaults to <em>false</em>.
+ *
+ * <dt>convert
+ * <dd>Flag that indicates if GIF, BMP and TIFF images should be converted
+ *     to PNG as well.
+ *     Optional, defaults to <em>false</em>.
  * </dl>
  *
+ * <p>Files are selected by their contents, not by their name: only files
+ * that start with a valid PNG signature and header (or, when converting,
+ * with a GIF, BMP or TIFF signature) are processed.
+ *
+ * <p>Additional arguments can be passed to the command using nested
+ * <code>&lt;arg&gt;</code> elements, like with the <code>exec</code> task.
+ *
+ * <p>In addition, any number of nested <code>&lt;candidate&gt;</code>
+ * elements can be specified, each with an optional <code>engine</code>,
+ * <code>command</code> and <code>args</code> attribute. If there is at least
+ * one, then each file is optimized by all candidates concurrently and the
+ * smallest result is kept. See {@link Candidate}.
+ *
  * <p>This task supports more parameters and contained elements, inherited
  * from {@link MatchingTask}. For more information, see
  * <a href="http://ant.apache.org/manual/dirtasks.html">the Ant site</a>.
@@ -80,6 +211,38 @@ public final class OptiPNGTask extends MatchingTask {
     */
    public static final long DEFAULT_TIMEOUT = 60L * 1000L;
 
+   /**
+    * The default minimum time-out for adaptive time-outs: 1 second.
+    */
+   public static final long DEFAULT_MIN_TIMEOUT = 1000L;
+
+   /**
+    * The maximum length of the command line for a batch invocation, in
+    * characters. This is a conservative estimate of the system limit
+    * (<code>ARG_MAX</code> on POSIX systems), taking into account that the
+    * environment also counts towards that limit.
+    */
+   static final int MAX_COMMAND_LENGTH = Os.isFamily("windows") ? 8000 : 128 * 1024;
+
+   /**
+    * Regular expression for a list of numbers and ranges, as accepted by
+    * OptiPNG for the <code>-zc</code>, <code>-zm</code>, <code>-zs</code>
+    * and <code>-f</code> options, e.g. <code>"0,5-9"</code>.
+    */
+   private static final Pattern RANGES = Pattern.compile("^[0-9]+(-[0-9]+)?(,[0-9]+(-[0-9]+)?)*$");
+
+   /**
+    * The maximum number of files found by a streaming scan that wait to be
+    * selected, see {@link #setStreaming(boolean)}.
+    */
+   private static final int SCAN_QUEUE_SIZE = 1024;
+
+   /**
+    * The marker that a streaming scan puts on the queue once it is done.
+    */
+   private static final StreamingScanner.ScannedFile END_OF_SCAN = new StreamingScanner.ScannedFile("", null);
+
+
 
    //-------------------------------------------------------------------------
    // Class functions
@@ -97,7 +260,7 @@ public final class OptiPNGTask extends MatchingTask {
     *    the quoted string, e.g. <code>"\"foo bar\""</code>,
     *    or <code>"(null)"</code> if the argument is <code>null</code>.
     */
-   private static final String quote(String s) {
+   static final String quote(String s) {
       return s == null ? "(null)" : "\"" + s + '"';
    }
 
@@ -113,52 +276,10 @@ public final class OptiPNGTask extends MatchingTask {
     *    e.g. <code>"\"foo bar\""</code>,
     *    or <code>"(null)"</code> if the argument is <code>null</code>.
     */
-   private static final String quote(Object o) {
+   static final String quote(Object o) {
       return o == null ? "(null)" : quote(o.toString());
    }
 
-   /**
-    * Determines if the specified character string matches the regular
-    * expression.
-    *
-    * @param s
-    *    the string to research, or <code>null</code>.
-    *
-    * @param regex
-    *    the regular expression, cannot be <code>null</code>.
-    *
-    * @return
-    *    <code>true</code> if <code>s</em> matches the regular expression;
-    *    <code>false</code> if it does not.
-    *
-    * @throws IllegalArgumentException
-    *    if <code>regex == null</code> or if it has an invalid syntax. 
-    */
-   private static final boolean matches(String s, String regex)
-   throws IllegalArgumentException {
-
-      // Check preconditions
-      if (regex == null) {
-         throw new IllegalArgumentException("regex == null");
-      }
-
-      // Compile the regular expression pattern
-      Pattern pattern;
-      try {
-         pattern = Pattern.compile(regex);
-      } catch (PatternSyntaxException cause) {
-         throw new IllegalArgumentException("Invalid regular expression \"" + regex + "\".", cause);
-      }
-
-      // Short-circuit if the string is null
-      if (s == null) {
-         return false;
-      }
-
-      // Find a match
-      return pattern.matcher(s).find();
-   }
-
    /**
     * Checks if the specified string is either null or empty (after trimming
     * the whitespace off).
@@ -170,7 +291,7 @@ public final class OptiPNGTask extends MatchingTask {
     *    <code>true</code> if <code>s == null || s.trim().length() &lt; 1</code>;
     *    <code>false</code> otherwise.
     */
-   private static final boolean isEmpty(String s) {
+   static final boolean isEmpty(String s) {
       return s == null || s.trim().length() < 1;
    }
 
@@ -239,7 +360,11 @@ public final class OptiPNGTask extends MatchingTask {
     * Constructs a new <code>OptiPNGTask</code> object.
     */
    public OptiPNGTask() {
-      // empty
+      _timeOut    = DEFAULT_TIMEOUT;
+      _level      = -1;
+      _interlace  = -1;
+      _args       = new Commandline();
+      _candidates = new ArrayList<Candidate>();
    }
 
 
@@ -277,6 +402,18 @@ public final class OptiPNGTask extends MatchingTask {
     */
    private long _timeOut;
 
+   /**
+    * The minimum adaptive time-out in milliseconds, or 0 (or lower) if
+    * unset.
+    */
+   private long _minTimeOut;
+
+   /**
+    * The maximum adaptive time-out in milliseconds, or 0 (or lower) if
+    * unset.
+    */
+   private long _maxTimeOut;
+
    /**
     * Character string that indicates whether the files should be processed
     * with OptiPNG at all. There are 3 options:
@@ -298,6 +435,138 @@ public final class OptiPNGTask extends MatchingTask {
     */
    private String _process;
 
+   /**
+    * The number of worker threads to use, or 0 (or lower) in case the
+    * number of available processors should be used.
+    */
+   private int _threads;
+
+   /**
+    * The maximum number of files to pass to a single invocation of the
+    * command. A value of 1 (or lower) disables batching.
+    */
+   private int _batchSize;
+
+   /**
+    * The directory holding the optimization cache, or <code>null</code> if
+    * no cache should be used.
+    */
+   private File _cacheDir;
+
+   /**
+    * The manifest file recording the files optimized in-place, or
+    * <code>null</code> if no manifest should be used.
+    */
+   private File _manifest;
+
+   /**
+    * Character string that indicates how files are copied, when they are not
+    * optimized. Either <code>"none"</code> (the default) or
+    * <code>"hard"</code>.
+    */
+   private String _linkMode;
+
+   /**
+    * The name of the optimizer to use, see {@link Optimizer#getName()}.
+    * If unset, then <code>"optipng"</code> is used.
+    */
+   private String _engine;
+
+   /**
+    * The OptiPNG optimization level, or -1 if unset.
+    */
+   private int _level;
+
+   /**
+    * The zlib compression levels to try, or <code>null</code> if unset.
+    */
+   private String _zc;
+
+   /**
+    * The zlib memory levels to try, or <code>null</code> if unset.
+    */
+   private String _zm;
+
+   /**
+    * The zlib compression strategies to try, or <code>null</code> if unset.
+    */
+   private String _zs;
+
+   /**
+    * The PNG delta filters to try, or <code>null</code> if unset.
+    */
+   private String _filters;
+
+   /**
+    * The interlace type of the output, or -1 if unset.
+    */
+   private int _interlace;
+
+   /**
+    * Flag that indicates if all metadata should be stripped.
+    */
+   private boolean _strip;
+
+   /**
+    * The additional arguments from the nested <code>&lt;arg&gt;</code>
+    * elements. Never <code>null</code>.
+    */
+   private final Commandline _args;
+
+   /**
+    * The candidates to race against each other for each file. If empty, then
+    * each file is only optimized by the engine.
+    */
+   private final List<Candidate> _candidates;
+
+   /**
+    * The file to write the per-file report to, or <code>null</code> if no
+    * report should be written.
+    */
+   private File _report;
+
+   /**
+    * The time budget, e.g. <code>"120s"</code>, or <code>null</code> if
+    * there is no budget.
+    */
+   private String _budget;
+
+   /**
+    * The file recording the winning compression parameters for each image,
+    * or <code>null</code> if these should not be recorded.
+    */
+   private File _trials;
+
+   /**
+    * The minimum predicted savings for a file to be optimized, as a
+    * percentage of the file size, or 0 if all files should be optimized.
+    */
+   private double _minSavings;
+
+   /**
+    * The file recording the savings achieved for each input file, or
+    * <code>null</code> if no history should be kept.
+    */
+   private File _history;
+
+   /**
+    * Flag that indicates if the savings of files should be estimated by
+    * recompressing part of the image data, if there is no history.
+    */
+   private boolean _probe;
+
+   /**
+    * Flag that indicates if files should be processed while the source
+    * directory is still being scanned.
+    */
+   private boolean _streaming;
+
+   /**
+    * Flag that indicates if GIF, BMP and TIFF images should be converted to
+    * PNG.
+    */
+   private boolean _convert;
+
    
    //-------------------------------------------------------------------------
    // Methods
@@ -338,7 +607,8 @@ public final class OptiPNGTask extends MatchingTask {
 
    /**
     * Sets the command to execute, optionally. By default this task will find
-    * a proper command on the current path.
+    * a proper command on the current path. This is ignored if the engine does
+    * not execute a command.
     *
     * @param command
     *    the command to use, e.g. <code>"/usr/local/bin/optipng"</code>,
@@ -363,6 +633,39 @@ public final class OptiPNGTask extends MatchingTask {
       _timeOut = timeOut;
    }
 
+   /**
+    * Sets the minimum time-out for a single file, in milliseconds. Setting
+    * this (or {@link #setMaxTimeOut(long) maxTimeOut}) enables adaptive
+    * time-outs: the time-out for each file then scales with the size of its
+    * raw image data (based on the dimensions in its <code>IHDR</code> chunk)
+    * and its size on disk, using the throughput observed for the files
+    * optimized so far. Until a few files have been optimized, the maximum
+    * applies. Files that are stuck are then killed quickly, while big files
+    * get the time they need.
+    *
+    * @param timeOut
+    *    the minimum time-out in milliseconds, or 0 (or lower) to use the
+    *    default of {@value #DEFAULT_MIN_TIMEOUT} ms.
+    */
+   public void setMinTimeOut(long timeOut) {
+      log("Setting \"minTimeOut\" to: " + timeOut + " ms.", MSG_VERBOSE);
+      _minTimeOut = timeOut;
+   }
+
+   /**
+    * Sets the maximum time-out for a single file, in milliseconds. Setting
+    * this (or {@link #setMinTimeOut(long) minTimeOut}) enables adaptive
+    * time-outs.
+    *
+    * @param timeOut
+    *    the maximum time-out in milliseconds, or 0 (or lower) to use the
+    *    value of {@link #setTimeOut(long) timeOut}.
+    */
+   public void setMaxTimeOut(long timeOut) {
+      log("Setting \"maxTimeOut\" to: " + timeOut + " ms.", MSG_VERBOSE);
+      _maxTimeOut = timeOut;
+   }
+
    /**
     * Sets whether the files should be processed with OptiPNG at all.
     * There are 3 options:
@@ -390,175 +693,1408 @@ public final class OptiPNGTask extends MatchingTask {
       _process = s;
    }
 
-   @Override
-   public void execute() throws BuildException {
-
-      // Source directory defaults to current directory
-      if (_sourceDir == null) {
-         _sourceDir = getProject().getBaseDir();
-      }
-
-      // Destination directory defaults to source directory
-      if (_destDir == null) {
-         _destDir = _sourceDir;
-      }
-
-      // Check the directories
-      checkDir("Source directory",      _sourceDir,  true, false);
-      checkDir("Destination directory",   _destDir, false,  true);
-
-      // Interpret the "process" option
-      ProcessOption processOption;
-      String p = (_process == null) ? null : _process.toLowerCase().trim();
-      if (p == null || "true".equals(p) || "yes".equals(p)) {
-         processOption = ProcessOption.MUST;
-      } else if ("false".equals(_process) || "no".equals(_process)) {
-         processOption = ProcessOption.MUST_NOT;
-      } else if ("try".equals(_process)) {
-         processOption = ProcessOption.SHOULD;
-      } else {
-         throw new BuildException("Invalid value for \"process\" option: " + quote(_process) + '.');
-      }
+   /**
+    * Sets the number of files to process concurrently. The default is the
+    * number of available processors.
+    *
+    * @param threads
+    *    the number of worker threads to use, or 0 (or lower) if the number of
+    *    available processors should be used.
+    */
+   public void setThreads(int threads) {
+      log("Setting \"threads\" to: " + threads + '.', MSG_VERBOSE);
+      _threads = threads;
+   }
 
-      // Determine what command to execute
-      String command = (_command == null || _command.length() < 1)
-                     ? DEFAULT_COMMAND
-                     : _command;
+   /**
+    * Sets the maximum number of files to pass to a single invocation of the
+    * OptiPNG command. The default is 1, meaning that each file is processed
+    * by a separate invocation. Regardless of this setting, the command line
+    * is never allowed to exceed the system limit.
+    *
+    * @param batchSize
+    *    the maximum number of files per invocation, or 1 (or lower) if
+    *    batching should be disabled.
+    */
+   public void setBatchSize(int batchSize) {
+      log("Setting \"batchSize\" to: " + batchSize + '.', MSG_VERBOSE);
+      _batchSize = batchSize;
+   }
 
-      // Test that the command is available
-      boolean commandAvailable = testCommand(command, processOption);
+   /**
+    * Sets the directory holding the persistent optimization cache. If this
+    * is set, then the result of each optimization is stored in this
+    * directory, keyed by the SHA-256 digest of the input file, combined with
+    * the version of the command and the options passed to it. On subsequent
+    * runs, the optimized file is taken from the cache instead of executing
+    * the command again.
+    *
+    * @param dir
+    *    the cache directory, or <code>null</code> if no cache should be used.
+    */
+   public void setCacheDir(File dir) {
+      log("Setting \"cacheDir\" to: " + quote(dir) + '.', MSG_VERBOSE);
+      _cacheDir = dir;
+   }
 
-      // Determine if transformation should be attempted at all
-      // (alternative is just copying)
-      boolean transform = processOption != ProcessOption.MUST_NOT && commandAvailable;
+   /**
+    * Sets the manifest file that records which files have already been
+    * optimized in-place. For each optimized file the size, modification time
+    * and digest are recorded. On subsequent runs, each file that is
+    * unchanged since it was optimized is skipped. This only applies if the
+    * files are optimized in-place, i.e. if the target directory is the same
+    * as the source directory. Several tasks can share a manifest, as long
+    * as they optimize the same directory.
+    *
+    * @param file
+    *    the manifest file, or <code>null</code> if no manifest should be
+    *    used.
+    */
+   public void setManifest(File file) {
+      log("Setting \"manifest\" to: " + quote(file) + '.', MSG_VERBOSE);
+      _manifest = file;
+   }
 
-      // Consider each individual file for processing/copying
-      log("Transforming from " + _sourceDir.getPath() + " to " + _destDir.getPath() + '.', MSG_VERBOSE);
-      long start = System.currentTimeMillis();
-      int failedCount = 0, optimizeCount = 0, copyCount = 0, skippedCount = 0;
-      for (String inFileName : getDirectoryScanner(_sourceDir).getIncludedFiles()) {
+   /**
+    * Sets how files are copied, when they are not optimized (either because
+    * <em>process</em> is set to <code>"no"</code> or because optimization
+    * failed). There are 2 options:
+    * <dl>
+    * <dt><code>"none"</code>
+    * <dd>The contents are always copied. This is the default.
+    *
+    * <dt><code>"hard"</code>
+    * <dd>The output file is created as a hard link to the input file, if
+    *     possible. If that fails, e.g. because the directories are on
+    *     different file systems, then the contents are copied instead.
+    *     <p>The output file and the input file are then the same file on
+    *     disk, so any tool that later modifies the output file in-place,
+    *     such as OptiPNG run on the output directory or an image editor,
+    *     silently modifies the input file as well. This task itself never
+    *     writes through a link, since it replaces output files by renaming a
+    *     temporary file. Only use this mode if the output files are not
+    *     modified in-place afterwards.
+    * </dl>
+    *
+    * <p>Regardless of this setting, nothing is copied if the input file and
+    * the output file are the same.
+    *
+    * @param s
+    *    the value, should be one of the allowed values (otherwise the task
+    *    will fail during execution).
+    */
+   public void setLinkMode(String s) {
+      log("Setting \"linkMode\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _linkMode = s;
+   }
 
-         // Make sure the input file exists
-         File inFile = new File(_sourceDir, inFileName);
-         if (! inFile.exists()) {
-            continue;
-         }
+   /**
+    * Sets the optimization engine to use. There are 2 built-in engines:
+    * <dl>
+    * <dt><code>"optipng"</code>
+    * <dd>The files are optimized by executing the OptiPNG command. This is
+    *     the default.
+    *
+    * <dt><code>"java"</code>
+    * <dd>The files are optimized inside the JVM, without executing any
+    *     external command. This tries a number of row filters and deflate
+    *     strategies and keeps the smallest result. It is always available,
+    *     but it typically compresses less well than OptiPNG.
+    * </dl>
+    *
+    * <p>Additional engines can be plugged in by implementing the
+    * {@link Optimizer} interface and registering the implementation through
+    * {@link java.util.ServiceLoader}. The <em>process</em> option applies to
+    * all engines.
+    *
+    * @param s
+    *    the name of the engine, should be either one of the built-in engines
+    *    or a registered one (otherwise the task will fail during execution).
+    */
+   public void setEngine(String s) {
+      log("Setting \"engine\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _engine = s;
+   }
 
-         // Determine if the file type is supported
-         if (! matches(inFileName.toLowerCase(), "\\.png$")) {
-            log("Skipping " + quote(inFileName) + " because the file does not end in \".png\" (case-insensitive).", MSG_VERBOSE);
-            skippedCount++;
-            continue;
-         }
+   /**
+    * Sets the file to write a per-file report to. For each file, the report
+    * contains the input and output size, the savings ratio, the wall clock
+    * time, the CPU time of the worker thread and of the child processes,
+    * the action taken (<code>optimized</code>, <code>copied</code>,
+    * <code>skipped</code> or <code>failed</code>) and the reason for
+    * skipping.
+    *
+    * <p>If the file name ends in <code>".csv"</code> (case-insensitive), then
+    * the report is written as CSV, otherwise as JSON.
+    *
+    * <p>The CPU time of child processes can only be attributed to individual
+    * files on Linux and when a single thread is used (see
+    * {@link #setThreads(int)}) without candidates; otherwise it is left
+    * empty. For files processed in a batch, the times of the batch are
+    * divided evenly over its files.
+    *
+    * @param file
+    *    the report file, or <code>null</code> if no report should be
+    *    written.
+    */
+   public void setReport(File file) {
+      log("Setting \"report\" to: " + quote(file) + '.', MSG_VERBOSE);
+      _report = file;
+   }
 
-         // Some preparations related to the input file and output file
-         long     thisStart = System.currentTimeMillis();
-         String outFileName = inFileName.replaceFirst("\\.[a-zA-Z]+$", ".png");
-         File       outFile = new File(_destDir, outFileName);
-         String outFilePath = outFile.getPath();
-         String  inFilePath = inFile.getPath();
+   /**
+    * Sets the OptiPNG optimization level (<code>-o</code>). Higher levels
+    * try more combinations of compression parameters, so they produce
+    * smaller files but take longer.
+    *
+    * @param level
+    *    the optimization level, 0 to 7.
+    */
+   public void setLevel(int level) {
+      log("Setting \"level\" to: " + level + '.', MSG_VERBOSE);
+      _level = level;
+   }
 
-         // Skip this file is the output file exists and is newer
-         if (!_overwrite && outFile.exists() && (outFile.lastModified() > inFile.lastModified())) {
-            log("Skipping " + quote(inFileName) + " because output file is newer.", MSG_VERBOSE); 
-            skippedCount++;
-            continue;
+   /**
+    * Sets the zlib compression levels to try (<code>-zc</code>).
+    *
+    * @param s
+    *    the levels, e.g. <code>"9"</code> or <code>"1-9"</code>, or
+    *    <code>null</code>.
+    */
+   public void setZc(String s) {
+      log("Setting \"zc\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _zc = s;
+   }
 
-         // Skip each empty file
-         } else if (inFile.length() < 1L) {
-            log("Skipping " + quote(inFileName) + " because the file is completely empty.", MSG_VERBOSE); 
-            skippedCount++;
-            continue;
-         }
+   /**
+    * Sets the zlib memory levels to try (<code>-zm</code>).
+    *
+    * @param s
+    *    the levels, e.g. <code>"8-9"</code>, or <code>null</code>.
+    */
+   public void setZm(String s) {
+      log("Setting \"zm\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _zm = s;
+   }
 
-         // File transformation (optimization) should be attempted
-         boolean copy = !transform;
-         if (transform) {
+   /**
+    * Sets the zlib compression strategies to try (<code>-zs</code>).
+    *
+    * @param s
+    *    the strategies, e.g. <code>"0-3"</code>, or <code>null</code>.
+    */
+   public void setZs(String s) {
+      log("Setting \"zs\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _zs = s;
+   }
 
-            // Prepare for the command execution
-            Buffer            buffer = new Buffer();
-            ExecuteWatchdog watchdog = (_timeOut > 0L) ? new ExecuteWatchdog(_timeOut) : null;
-            Execute          execute = new Execute(buffer, watchdog);
-            String[]         cmdline = new String[] { command, "-fix", "-force", "-out", outFilePath, "--", inFilePath };
+   /**
+    * Sets the PNG delta filters to try (<code>-f</code>).
+    *
+    * @param s
+    *    the filters, e.g. <code>"0,5"</code>, or <code>null</code>.
+    */
+   public void setFilters(String s) {
+      log("Setting \"filters\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _filters = s;
+   }
 
-            execute.setAntRun(getProject());
-            execute.setCommandline(cmdline);
+   /**
+    * Sets the interlace type of the output (<code>-i</code>).
+    *
+    * @param type
+    *    the interlace type: 0 for non-interlaced, 1 for Adam7.
+    */
+   public void setInterlace(int type) {
+      log("Setting \"interlace\" to: " + type + '.', MSG_VERBOSE);
+      _interlace = type;
+   }
 
-            // Execute the command
-            boolean failure;
+   /**
+    * Sets whether all metadata should be stripped (<code>-strip all</code>).
+    *
+    * @param flag
+    *    <code>true</code> if all metadata should be stripped.
+    */
+   public void setStrip(boolean flag) {
+      log("Setting \"strip\" to: " + flag + '.', MSG_VERBOSE);
+      _strip = flag;
+   }
+
+   /**
+    * Adds an additional argument to pass to the command.
+    *
+    * @return
+    *    the new argument, never <code>null</code>.
+    */
+   public Commandline.Argument createArg() {
+      return _args.createArgument();
+   }
+
+   /**
+    * Sets the time budget for optimizing all files. This is a number,
+    * optionally followed by a unit: <code>ms</code> (the default),
+    * <code>s</code>, <code>m</code> or <code>h</code>; e.g.
+    * <code>"120s"</code>.
+    *
+    * <p>With a budget, the files with the highest expected savings per
+    * second are optimized first, instead of the most expensive ones. The
+    * expected savings are estimated from the size of the file relative to
+    * its raw image data, i.e. poorly compressed files go first. Once the
+    * budget is exhausted, running commands are killed and all remaining
+    * files are copied unchanged, as with <code>process="try"</code>, instead
+    * of failing the build.
+    *
+    * @param s
+    *    the budget, or <code>null</code> if there is no budget.
+    */
+   public void setBudget(String s) {
+      log("Setting \"budget\" to: " + quote(s) + '.', MSG_VERBOSE);
+      _budget = s;
+   }
+
+   /**
+    * Sets the file that records the compression parameters that won the
+    * OptiPNG trials for each image (<code>-zc</code>, <code>-zm</code>,
+    * <code>-zs</code> and <code>-f</code>), keyed by the contents of the
+    * image and by its name. On subsequent runs, an image that is found in
+    * this file is first optimized with only those parameters, which is much
+    * faster than trying all combinations. Only if the result is worse than
+    * the one recorded, relative to the input size, are all combinations
+    * tried again, after which the smaller of both results is kept.
+    *
+    * <p>This only applies to the <code>optipng</code> engine, without
+    * candidates. Batching is disabled when this option is used.
+    *
+    * @param file
+    *    the trials file, or <code>null</code> if the winning parameters
+    *    should not be recorded.
+    */
+   public void setTrials(File file) {
+      log("Setting \"trials\" to: " + quote(file) + '.', MSG_VERBOSE);
+      _trials = file;
+   }
+
+   /**
+    * Sets the minimum predicted savings for a file to be optimized, as a
+    * percentage of the file size, e.g. <code>1.5</code>. Files that are
+    * predicted to save less are not optimized, but copied instead, like
+    * with <code>process="no"</code>. These are counted separately in the
+    * summary and reported with the skip reason <code>"low-yield"</code>.
+    *
+    * <p>The savings are predicted from the history (see
+    * {@link #setHistory(File)}), if the file is unchanged since it was last
+    * optimized, and otherwise by the probe, if enabled (see
+    * {@link #setProbe(boolean)}). Files for which no prediction can be
+    * made are always optimized.
+    *
+    * @param percentage
+    *    the minimum savings as a percentage, or 0 if all files should be
+    *    optimized.
+    */
+   public void setMinSavings(double percentage) {
+      log("Setting \"minSavings\" to: " + percentage + '.', MSG_VERBOSE);
+      _minSavings = percentage;
+   }
+
+   /**
+    * Sets the file that records the savings achieved for each input file,
+    * together with the size and modification time of the input file. As
+    * long as an input file is unchanged, the savings of optimizing it again
+    * are known in advance, see {@link #setMinSavings(double)}.
+    *
+    * @param file
+    *    the history file, or <code>null</code> if no history should be
+    *    kept.
+    */
+   public void setHistory(File file) {
+      log("Setting \"history\" to: " + quote(file) + '.', MSG_VERBOSE);
+      _history = file;
+   }
+
+   /**
+    * Sets whether the savings of files without history should be estimated
+    * inside the JVM, see {@link #setMinSavings(double)}. The probe
+    * decompresses the first part of the image data and compresses it again
+    * at the highest zlib level; this takes a fraction of the time of a full
+    * optimization. Since filtering is not taken into account, the estimate
+    * tends to be lower than the actual savings, so more files may be
+    * copied as low-yield than with a history.
+    *
+    * @param flag
+    *    <code>true</code> if the savings should be estimated.
+    */
+   public void setProbe(boolean flag) {
+      log("Setting \"probe\" to: " + flag + '.', MSG_VERBOSE);
+      _probe = flag;
+   }
+
+   /**
+    * Sets whether files should be processed while the source directory is
+    * still being scanned. By default the whole directory tree is scanned
+    * first, which for very large trees (or slow network file systems) takes
+    * long and keeps all file names in memory. With streaming, the include
+    * and exclude patterns are applied while walking the tree and the files
+    * found are optimized right away, so the memory use does not depend on
+    * the number of files.
+    *
+    * <p>The most expensive files (or, with a budget, the files with the
+    * highest expected savings) are then only dispatched first within each
+    * window of a few files per thread, rather than across all files. The
+    * log messages for the files appear in the order the files complete.
+    *
+    * @param flag
+    *    <code>true</code> if files should be processed while scanning.
+    */
+   public void setStreaming(boolean flag) {
+      log("Setting \"streaming\" to: " + flag + '.', MSG_VERBOSE);
+      _streaming = flag;
+   }
+
+   /**
+    * Sets whether GIF, BMP and TIFF images should be converted to PNG. Such
+    * files are recognized by their contents; the output file gets the
+    * extension <code>.png</code>. Since the original cannot serve as the
+    * output file, these files are never copied instead of converted, not
+    * even when the time budget is exhausted or when conversion fails. Only
+    * applies to the OptiPNG engine.
+    *
+    * @param flag
+    *    <code>true</code> if images should be converted.
+    */
+   public void setConvert(boolean flag) {
+      log("Setting \"convert\" to: " + flag + '.', MSG_VERBOSE);
+      _convert = flag;
+   }
+
+   /**
+    * Adds a candidate for the best-of mode. Once at least one candidate is
+    * added, each file is optimized by all candidates concurrently and the
+    * smallest result is kept.
+    *
+    * @return
+    *    the new candidate, never <code>null</code>.
+    */
+   public Candidate createCandidate() {
+      Candidate candidate = new Candidate();
+      _candidates.add(candidate);
+      return candidate;
+   }
+
+   @Override
+   public void execute() throws BuildException {
+
+      // Source directory defaults to current directory
+      if (_sourceDir == null) {
+         _sourceDir = getProject().getBaseDir();
+      }
+
+      // Destination directory defaults to source directory
+      if (_destDir == null) {
+         _destDir = _sourceDir;
+      }
+
+      // Check the directories
+      checkDir("Source directory",      _sourceDir,  true, false);
+      checkDir("Destination directory",   _destDir, false,  true);
+
+      // Check the OptiPNG options
+      checkArguments();
+
+      // Interpret the "process" option
+      ProcessOption processOption;
+      String p = (_process == null) ? null : _process.toLowerCase().trim();
+      if (p == null || "true".equals(p) || "yes".equals(p)) {
+         processOption = ProcessOption.MUST;
+      } else if ("false".equals(_process) || "no".equals(_process)) {
+         processOption = ProcessOption.MUST_NOT;
+      } else if ("try".equals(_process)) {
+         processOption = ProcessOption.SHOULD;
+      } else {
+         throw new BuildException("Invalid value for \"process\" option: " + quote(_process) + '.');
+      }
+
+      // Interpret the "engine" option
+      String        engine = isEmpty(_engine) ? OptiPNGOptimizer.NAME : _engine.trim();
+      Optimizer optimizer = findOptimizer(engine);
+      if (optimizer == null) {
+         throw new BuildException("Invalid value for \"engine\" option: " + quote(_engine) + '.');
+      }
+
+      // Determine what command to execute, if any
+      String command = null;
+      if (optimizer instanceof CommandOptimizer) {
+         command = isEmpty(_command)
+                 ? ((CommandOptimizer) optimizer).getDefaultCommand()
+                 : _command;
+      }
+
+      // Test that the command is available, or in best-of mode, which
+      // candidates are available
+      String           version;
+      String           options;
+      List<BestOfOptimization.Contender> contenders = null;
+      if (_candidates.isEmpty()) {
+         version = determineVersion(optimizer, command, processOption);
+         options = optimizer.getName() + ' ' + join(getArguments());
+      } else {
+         contenders = createContenders(processOption);
+         StringBuilder v = new StringBuilder();
+         StringBuilder o = new StringBuilder();
+         for (BestOfOptimization.Contender contender : contenders) {
+            v.append(contender._version).append(' ');
+            o.append(contender._description).append('\u0000');
+         }
+         version = contenders.isEmpty() ? null : v.toString().trim();
+         options = o.toString();
+      }
+      boolean commandAvailable = version != null;
+
+      // Determine if transformation should be attempted at all
+      // (alternative is just copying)
+      boolean transform = processOption != ProcessOption.MUST_NOT && commandAvailable;
+
+      // Open the optimization cache, if configured
+      OptimizationCache cache = null;
+      if (transform && _cacheDir != null) {
+         try {
+            cache = new OptimizationCache(_cacheDir, version, options);
+            log("Using cache directory " + quote(_cacheDir.getPath()) + '.', MSG_VERBOSE);
+         } catch (IOException cause) {
+            throw new BuildException("Unable to use cache directory " + quote(_cacheDir.getPath()) + '.', cause);
+         }
+      }
+
+      // Load the manifest of files optimized in-place, if configured
+      Manifest manifest = null;
+      boolean   inPlace = _destDir.getAbsoluteFile().equals(_sourceDir.getAbsoluteFile());
+      if (transform && _manifest != null) {
+         if (! inPlace) {
+            log("Ignoring \"manifest\" since files are not optimized in-place.", MSG_VERBOSE);
+         } else {
             try {
-               execute.execute();
-               failure = execute.isFailure();
+               manifest = new Manifest(_manifest, _sourceDir, OptimizationCache.salt(version, options));
+               log("Using manifest " + quote(_manifest.getPath()) + '.', MSG_VERBOSE);
             } catch (IOException cause) {
-               failure = true;
+               throw new BuildException("Unable to read manifest " + quote(_manifest.getPath()) + '.', cause);
             }
+         }
+      }
 
-            // Output to stderr indicates a failure
-            String errorOutput = buffer.getErrString();
-            failure            = failure ? true : ! isEmpty(errorOutput);
-
-            // A non-existent or empty file also indicate failure
-            if (! failure) {
-               if (! outFile.exists()) {
-                  failure     = true;
-                  errorOutput = "Output file not created.";
-               } else if (outFile.length() < 1L) {
-                  failure     = true;
-                  errorOutput = "Generated output file is empty.";
-               }
+      // Load the winning parameters of earlier runs, if configured
+      TrialStore trials = null;
+      if (transform && _trials != null) {
+         if (contenders != null || ! (optimizer instanceof OptiPNGOptimizer)) {
+            log("Ignoring \"trials\" since it only applies to the " + OptiPNGOptimizer.NAME + " engine without candidates.", MSG_VERBOSE);
+         } else {
+            try {
+               trials = new TrialStore(_trials);
+               log("Using trials file " + quote(_trials.getPath()) + '.', MSG_VERBOSE);
+            } catch (IOException cause) {
+               throw new BuildException("Unable to read trials file " + quote(_trials.getPath()) + '.', cause);
             }
+         }
+      }
 
-            // Log the result for this individual file
-            long thisDuration = System.currentTimeMillis() - thisStart;
-            if (failure) {
-               String logMessage = "Failed to optimize " + quote(inFilePath);
-               if (isEmpty(errorOutput)) {
-                  logMessage += '.';
+      // Load the savings history, if configured
+      SavingsHistory history = null;
+      if (transform && _history != null) {
+         try {
+            history = new SavingsHistory(_history);
+            log("Using history file " + quote(_history.getPath()) + '.', MSG_VERBOSE);
+         } catch (IOException cause) {
+            throw new BuildException("Unable to read history file " + quote(_history.getPath()) + '.', cause);
+         }
+      }
+
+      // Interpret the "minSavings" option
+      if (_minSavings < 0.0 || _minSavings >= 100.0) {
+         throw new BuildException("Invalid value for \"minSavings\" option: " + _minSavings + ". Should be between 0 and 100.");
+      } else if (transform && _minSavings > 0.0 && history == null && ! _probe) {
+         log("Ignoring \"minSavings\" since neither \"history\" nor \"probe\" is set.", MSG_VERBOSE);
+      }
+      double minSavings = (transform && (history != null || _probe)) ? _minSavings / 100.0 : 0.0;
+
+      // Interpret the "linkMode" option
+      Copier.LinkMode linkMode;
+      String l = (_linkMode == null) ? null : _linkMode.toLowerCase().trim();
+      if (l == null || "none".equals(l)) {
+         linkMode = Copier.LinkMode.NONE;
+      } else if ("hard".equals(l)) {
+         linkMode = Copier.LinkMode.HARD;
+         log("Files that are not optimized are hard links to the input files; modifying them in-place modifies the input files as well.", MSG_VERBOSE);
+      } else {
+         throw new BuildException("Invalid value for \"linkMode\" option: " + quote(_linkMode) + '.');
+      }
+
+      // Candidates in best-of mode run on a separate pool, since each worker
+      // waits for the candidates for its file
+      ExecutorService racePool = (transform && contenders != null) ? Executors.newCachedThreadPool() : null;
+
+      // Determine the time-out model
+      TimeOutModel timeOuts;
+      if (_minTimeOut > 0L || _maxTimeOut > 0L) {
+         long min = (_minTimeOut > 0L) ? _minTimeOut : DEFAULT_MIN_TIMEOUT;
+         long max = (_maxTimeOut > 0L) ? _maxTimeOut : _timeOut;
+         if (max > 0L && max < min) {
+            throw new BuildException("The \"maxTimeOut\" (" + max + " ms) is less than the \"minTimeOut\" (" + min + " ms).");
+         }
+         timeOuts = new TimeOutModel(true, min, max);
+         log("Using adaptive time-outs between " + min + " ms and " + (max > 0L ? max + " ms." : "no maximum."), MSG_VERBOSE);
+      } else {
+         timeOuts = new TimeOutModel(false, 0L, _timeOut);
+      }
+
+      // Interpret the "budget" option
+      long budget = 0L;
+      if (! isEmpty(_budget)) {
+         budget = parseDuration(_budget);
+         if (budget < 1L) {
+            throw new BuildException("Invalid value for \"budget\" option: " + quote(_budget) + '.');
+         }
+         log("Using a time budget of " + budget + " ms.", MSG_VERBOSE);
+      }
+      long deadline = (budget > 0L) ? System.currentTimeMillis() + budget : 0L;
+
+      // Only OptiPNG converts other image formats to PNG
+      boolean convert = transform && _convert && optimizer instanceof OptiPNGOptimizer;
+      if (transform && _convert && ! convert) {
+         log("Ignoring \"convert\" since it only applies to the " + OptiPNGOptimizer.NAME + " engine.", MSG_VERBOSE);
+      }
+
+      Execution execution = new Execution();
+      execution._project       = getProject();
+      execution._sourceDir     = _sourceDir;
+      execution._destDir       = _destDir;
+      execution._overwrite     = _overwrite;
+      execution._optimizer     = optimizer;
+      execution._command       = command;
+      execution._arguments     = Collections.unmodifiableList(getArguments());
+      execution._transform     = transform;
+      execution._convert       = convert;
+      execution._processOption = processOption;
+      execution._linkMode      = linkMode;
+      execution._cache         = cache;
+      execution._manifest      = manifest;
+      execution._trials        = trials;
+      execution._history       = history;
+      execution._probe         = _probe;
+      execution._minSavings    = minSavings;
+      execution._contenders    = contenders;
+      execution._racePool      = racePool;
+      execution._timeOuts      = timeOuts;
+      execution._deadline      = deadline;
+
+      // Determine the number of worker threads
+      int threads = (_threads > 0) ? _threads : Runtime.getRuntime().availableProcessors();
+
+      // The CPU time of child processes can only be attributed to a file if
+      // no other children run at the same time
+      boolean measureChildCpu = _report != null && threads == 1 && contenders == null;
+
+      // Open the report, if configured
+      Report report = null;
+      if (_report != null) {
+         try {
+            report = Report.open(_report);
+         } catch (IOException cause) {
+            throw new BuildException("Unable to write report " + quote(_report.getPath()) + '.', cause);
+         }
+      }
+
+      // Consider each individual file for processing/copying
+      log("Transforming from " + _sourceDir.getPath() + " to " + _destDir.getPath() + " using " + threads + " thread(s).", MSG_VERBOSE);
+      long start = System.currentTimeMillis();
+      Collector collector = new Collector(report);
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      IOException reportError = null;
+      try {
+         if (_streaming) {
+            processStreaming(execution, threads, pool, measureChildCpu, collector);
+         } else {
+            processAll(execution, pool, measureChildCpu, collector);
+         }
+      } finally {
+         pool.shutdownNow();
+         if (racePool != null) {
+            racePool.shutdownNow();
+         }
+
+         // Finish the report, also if processing failed, so that the file is
+         // closed and complete for the files processed so far
+         if (report != null) {
+            try {
+               report.close();
+            } catch (IOException cause) {
+               reportError = cause;
+            }
+         }
+      }
+      if (reportError != null) {
+         throw new BuildException("Unable to write report " + quote(_report.getPath()) + '.', reportError);
+      } else if (report != null) {
+         log("Wrote report " + quote(_report.getPath()) + '.', MSG_VERBOSE);
+      }
+
+      // Store the manifest
+      if (manifest != null) {
+         try {
+            manifest.save();
+         } catch (IOException cause) {
+            throw new BuildException("Unable to write manifest " + quote(_manifest.getPath()) + '.', cause);
+         }
+      }
+
+      // Store the winning parameters
+      if (trials != null) {
+         try {
+            trials.save();
+         } catch (IOException cause) {
+            throw new BuildException("Unable to write trials file " + quote(_trials.getPath()) + '.', cause);
+         }
+      }
+
+      // Store the savings history
+      if (history != null) {
+         try {
+            history.save();
+         } catch (IOException cause) {
+            throw new BuildException("Unable to write history file " + quote(_history.getPath()) + '.', cause);
+         }
+      }
+
+      // Log the total result
+      long duration = System.currentTimeMillis() - start;
+      if (collector._overBudgetCount > 0) {
+         log("Time budget of " + budget + " ms exhausted; " + collector._overBudgetCount + " file(s) copied without being optimized.", MSG_WARN);
+      }
+      if (collector._lowYieldCount > 0) {
+         log("" + collector._lowYieldCount + " file(s) copied without being optimized because the predicted savings are below " + _minSavings + "%.");
+      }
+      if (collector._keptCount > 0) {
+         log("" + collector._keptCount + " file(s) kept as they were because optimizing them did not make them smaller.");
+      }
+      if (collector._failedCount > 0) {
+         throw new BuildException("" + collector._failedCount + " file(s) failed to be optimized and/or copied; " + collector._optimizeCount + " file(s) optimized; " + collector._keptCount + " file(s) kept; " + collector._copyCount + " file(s) copied; " + collector._skippedCount + " file(s) skipped. Total duration is " + duration + " ms.");
+      } else {
+         log("" + collector._optimizeCount + " file(s) optimized and " + collector._copyCount + " file(s) copied in " + duration + " ms; " + collector._skippedCount + " file(s) skipped.");
+      }
+   }
+
+   /**
+    * Scans the source directory completely, then selects and processes the
+    * files. The results are collected in the original order, to keep the log
+    * output deterministic.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @param pool
+    *    the worker pool, cannot be <code>null</code>.
+    *
+    * @param measureChildCpu
+    *    flag that indicates if the CPU time of child processes should be
+    *    measured.
+    *
+    * @param collector
+    *    the collector of the results, cannot be <code>null</code>.
+    *
+    * @throws BuildException
+    *    if processing is interrupted or fails unexpectedly.
+    */
+   private void processAll(Execution       execution,
+                           ExecutorService pool,
+                           boolean         measureChildCpu,
+                           Collector       collector)
+   throws BuildException {
+
+      String[] inFileNames = getDirectoryScanner(_sourceDir).getIncludedFiles();
+
+      // Select the files to process
+      List<FileResult> results  = new ArrayList<FileResult>(inFileNames.length);
+      List<FileResult> selected = new ArrayList<FileResult>(inFileNames.length);
+      for (String inFileName : inFileNames) {
+         FileResult result = FileSelection.select(inFileName, null, execution);
+         results.add(result);
+         if (result.isSelected()) {
+            selected.add(result);
+         }
+      }
+
+      // Submit all units of work to the worker pool and wait for them
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (List<FileResult> unit : createUnits(selected, execution)) {
+         futures.add(pool.submit(createWork(unit, execution, measureChildCpu)));
+      }
+      for (Future<?> future : futures) {
+         await(future);
+      }
+
+      for (FileResult result : results) {
+         collector.collect(result);
+      }
+   }
+
+   /**
+    * Configures the specified scanner with the source directory and the
+    * patterns and selectors of the implicit file set. Unlike
+    * {@link #getDirectoryScanner(File)}, this leaves the file set itself
+    * untouched.
+    *
+    * @param scanner
+    *    the scanner to configure, cannot be <code>null</code>.
+    */
+   private void configureScanner(DirectoryScanner scanner) {
+      Project project = getProject();
+      scanner.setBasedir(_sourceDir);
+      scanner.setIncludes(fileset.mergeIncludes(project));
+      scanner.setExcludes(fileset.mergeExcludes(project));
+      scanner.setSelectors(fileset.getSelectors(project));
+      if (fileset.getDefaultexcludes()) {
+         scanner.addDefaultExcludes();
+      }
+      scanner.setCaseSensitive(fileset.isCaseSensitive());
+      scanner.setFollowSymlinks(fileset.isFollowSymlinks());
+   }
+
+   /**
+    * Scans the source directory on a separate thread, while selecting and
+    * processing the files found so far. The names of the files found are
+    * passed through a bounded queue; the selected files are gathered in
+    * windows of limited size, each of which is divided into units of work
+    * and ordered like all files are in {@link #processAll processAll}. The
+    * number of units waiting for a worker is limited as well, so the memory
+    * use does not depend on the number of files. The results are collected
+    * in the order they complete.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @param threads
+    *    the number of worker threads.
+    *
+    * @param pool
+    *    the worker pool, cannot be <code>null</code>.
+    *
+    * @param measureChildCpu
+    *    flag that indicates if the CPU time of child processes should be
+    *    measured.
+    *
+    * @param collector
+    *    the collector of the results, cannot be <code>null</code>.
+    *
+    * @throws BuildException
+    *    if scanning fails, or if processing is interrupted or fails
+    *    unexpectedly.
+    */
+   private void processStreaming(Execution       execution,
+                                 int             threads,
+                                 ExecutorService pool,
+                                 boolean         measureChildCpu,
+                                 Collector       collector)
+   throws BuildException {
+
+      // Scan on a separate thread, which blocks as soon as the queue is full
+      final BlockingQueue<StreamingScanner.ScannedFile> files = new ArrayBlockingQueue<StreamingScanner.ScannedFile>(SCAN_QUEUE_SIZE);
+      final StreamingScanner    scanner = new StreamingScanner();
+      configureScanner(scanner);
+      FutureTask<Void> scan = new FutureTask<Void>(new Callable<Void>() {
+         public Void call() throws Exception {
+            boolean cancelled = false;
+            try {
+               scanner.walk(files);
+            } catch (InterruptedException cause) {
+               cancelled = true;
+            } finally {
+               if (! cancelled) {
+                  files.put(END_OF_SCAN);
+               }
+            }
+            return null;
+         }
+      });
+      Thread scanThread = new Thread(scan, "optipng-scan");
+      scanThread.setDaemon(true);
+      scanThread.start();
+
+      int      windowSize = threads * Math.max(1, _batchSize) * 4;
+      int      maxPending = threads * 2;
+      int         pending = 0;
+      boolean   completed = false;
+      List<FileResult> window = new ArrayList<FileResult>(windowSize);
+      CompletionService<List<FileResult>> completion = new ExecutorCompletionService<List<FileResult>>(pool);
+      try {
+         boolean end = false;
+         while (! end) {
+
+            // Select the next file, using the attributes read by the scan
+            StreamingScanner.ScannedFile file = files.take();
+            end = file == END_OF_SCAN;
+            if (! end) {
+               FileResult result = FileSelection.select(file._name, file._attributes, execution);
+               if (result.isSelected()) {
+                  window.add(result);
                } else {
-                  logMessage += ": " + errorOutput;
+                  collector.collect(result);
                }
-               log(logMessage, MSG_ERR);
-               failedCount++;
+            }
 
-               // Failed, but then instead copy the input file unchanged
-               if (processOption != ProcessOption.MUST) {
-                  copy = true;
+            // Submit the window once it is full, waiting for a unit to
+            // complete whenever too many are pending
+            if (window.size() >= windowSize || (end && window.size() > 0)) {
+               for (List<FileResult> unit : createUnits(window, execution)) {
+                  for (; pending >= maxPending; pending--) {
+                     collectUnit(completion.take(), collector);
+                  }
+                  completion.submit(createWork(unit, execution, measureChildCpu), unit);
+                  pending++;
                }
-            } else {
-               log("Optimized " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
-               optimizeCount++;
+               window.clear();
+            }
+
+            // Collect the units that are complete
+            for (Future<List<FileResult>> done; (done = completion.poll()) != null; pending--) {
+               collectUnit(done, collector);
             }
          }
 
-         // Copy the file?
-         if (copy) {
-            try {
-               FileUtils.getFileUtils().copyFile(inFile, outFile);
-               long thisDuration = System.currentTimeMillis() - thisStart;
-               log("Copied " + quote(inFileName) + " in " + thisDuration + " ms.", MSG_VERBOSE);
-               copyCount++;
-            } catch (Throwable cause) {
-               String logMessage = "Failed to copy " + quote(inFilePath) + " to " + quote(outFilePath) + '.';
-               log(logMessage, MSG_ERR);
-               failedCount++;
+         // Wait for the remaining units
+         for (; pending > 0; pending--) {
+            collectUnit(completion.take(), collector);
+         }
+
+         // Check the outcome of the scan
+         try {
+            scan.get();
+         } catch (ExecutionException cause) {
+            throw new BuildException("Unable to scan directory " + quote(_sourceDir.getPath()) + '.', cause.getCause());
+         }
+         completed = true;
+      } catch (InterruptedException cause) {
+         throw new BuildException("Interrupted while waiting for files to be processed.", cause);
+      } finally {
+         if (! completed) {
+            scan.cancel(true);
+         }
+      }
+   }
+
+   /**
+    * Divides the specified selected files into units of work and orders
+    * these.
+    *
+    * @param selected
+    *    the selected files, cannot be <code>null</code>; will be reordered.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @return
+    *    the units of work, in the order they should be dispatched, never
+    *    <code>null</code>.
+    */
+   private List<List<FileResult>> createUnits(List<FileResult> selected, Execution execution) {
+
+      // Dispatch the most expensive work first (longest processing time
+      // first), so that the end of the run consists of small units of work
+      // that spread evenly over the threads; within a batch, files of
+      // similar cost end up together. With a budget, dispatch the work with
+      // the highest expected savings per second first instead.
+      final boolean bySavings = execution._deadline > 0L;
+      Collections.sort(selected, new Comparator<FileResult>() {
+         public int compare(FileResult a, FileResult b) {
+            return bySavings ? Double.compare(savingsRate(b), savingsRate(a))
+                             : Long.compare(b.getCost(), a.getCost());
+         }
+      });
+
+      // Divide the selected files into units of work
+      boolean batching = execution._transform && execution._contenders == null && execution._trials == null
+                      && execution._optimizer instanceof CommandOptimizer && _batchSize > 1;
+      List<List<FileResult>> batches = batching ? BatchProcessor.createBatches(selected, execution._command, _batchSize)
+                                                : createSingletons(selected);
+      Collections.sort(batches, new Comparator<List<FileResult>>() {
+         public int compare(List<FileResult> a, List<FileResult> b) {
+            return bySavings ? Double.compare(savingsRate(b), savingsRate(a))
+                             : Long.compare(cost(b), cost(a));
+         }
+      });
+      return batches;
+   }
+
+   /**
+    * Creates the work for the worker pool that processes the specified unit
+    * of work and records the times spent on it.
+    *
+    * @param unit
+    *    the files to process, cannot be <code>null</code> and cannot be
+    *    empty.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>.
+    *
+    * @param measureChildCpu
+    *    flag that indicates if the CPU time of child processes should be
+    *    measured.
+    *
+    * @return
+    *    the work, never <code>null</code>.
+    */
+   private Runnable createWork(final List<FileResult> unit, final Execution execution, final boolean measureChildCpu) {
+      return new Runnable() {
+         public void run() {
+            long      unitStart = System.currentTimeMillis();
+            long   unitCpuStart = CpuTime.currentThread();
+            long childCpuStart = measureChildCpu ? CpuTime.children() : -1L;
+            if (unit.size() == 1) {
+               FileProcessor.process(unit.get(0), execution);
+            } else {
+               BatchProcessor.process(unit, execution);
+            }
+            long      duration = System.currentTimeMillis() - unitStart;
+            long       cpuTime = difference(unitCpuStart,  CpuTime.currentThread());
+            long  childCpuTime = difference(childCpuStart, measureChildCpu ? CpuTime.children() : -1L);
+            long             n = unit.size();
+            for (FileResult result : unit) {
+               result.setTimes(duration / n, cpuTime < 0L ? -1L : cpuTime / n, childCpuTime < 0L ? -1L : childCpuTime / n);
             }
          }
+      };
+   }
+
+   /**
+    * Waits for the specified work to complete.
+    *
+    * @param future
+    *    the future of the work, cannot be <code>null</code>.
+    *
+    * @return
+    *    the result of the work.
+    *
+    * @throws BuildException
+    *    if waiting is interrupted or the work failed unexpectedly.
+    */
+   private static <T> T await(Future<T> future) throws BuildException {
+      try {
+         return future.get();
+      } catch (InterruptedException cause) {
+         throw new BuildException("Interrupted while waiting for files to be processed.", cause);
+      } catch (ExecutionException cause) {
+         throw new BuildException("Unexpected error while processing files.", cause.getCause());
       }
+   }
 
-      // Log the total result
-      long duration = System.currentTimeMillis() - start;
-      if (failedCount > 0) {
-         throw new BuildException("" + failedCount + " file(s) failed to be optimized and/or copied; " + optimizeCount + " file(s) optimized; " + copyCount + " file(s) copied; " + skippedCount + " file(s) skipped. Total duration is " + duration + " ms.");
+   /**
+    * Collects the results of the specified completed unit of work.
+    *
+    * @param future
+    *    the future of the unit of work, cannot be <code>null</code>.
+    *
+    * @param collector
+    *    the collector of the results, cannot be <code>null</code>.
+    *
+    * @throws BuildException
+    *    if the work failed unexpectedly.
+    */
+   private static void collectUnit(Future<List<FileResult>> future, Collector collector)
+   throws BuildException {
+      for (FileResult result : await(future)) {
+         collector.collect(result);
+      }
+   }
+
+   /**
+    * Estimates the savings per unit of cost for the specified file. The
+    * size on disk relative to the size of the raw image data is used as the
+    * indication for the potential savings, so a file that is poorly
+    * compressed scores high.
+    *
+    * @param result
+    *    the file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the estimated savings rate, in arbitrary units.
+    */
+   private static double savingsRate(FileResult result) {
+      return (double) Math.max(0L, result.getInSize()) / result.getCost();
+   }
+
+   /**
+    * Estimates the savings per unit of cost for the specified unit of work.
+    *
+    * @param batch
+    *    the files in the unit of work, cannot be <code>null</code>.
+    *
+    * @return
+    *    the estimated savings rate, in arbitrary units.
+    */
+   private static double savingsRate(List<FileResult> batch) {
+      long size = 0L;
+      for (FileResult result : batch) {
+         size += Math.max(0L, result.getInSize());
+      }
+      return (double) size / cost(batch);
+   }
+
+   /**
+    * Parses a duration, e.g. <code>"120s"</code>.
+    *
+    * @param s
+    *    the duration: a number, optionally followed by <code>ms</code>
+    *    (the default), <code>s</code>, <code>m</code> or <code>h</code>,
+    *    cannot be <code>null</code>.
+    *
+    * @return
+    *    the duration in milliseconds, or -1 if the string is invalid.
+    */
+   private static long parseDuration(String s) {
+      Matcher matcher = Pattern.compile("^\\s*([0-9]+)\\s*(ms|s|m|h)?\\s*$").matcher(s.toLowerCase());
+      if (! matcher.matches()) {
+         return -1L;
+      }
+      long value;
+      try {
+         value = Long.parseLong(matcher.group(1));
+      } catch (NumberFormatException cause) {
+         return -1L;
+      }
+      String unit = matcher.group(2);
+      if ("s".equals(unit)) {
+         return value * 1000L;
+      } else if ("m".equals(unit)) {
+         return value * 60L * 1000L;
+      } else if ("h".equals(unit)) {
+         return value * 60L * 60L * 1000L;
+      } else {
+         return value;
+      }
+   }
+
+   /**
+    * Computes the estimated cost of the specified unit of work.
+    *
+    * @param batch
+    *    the files in the unit of work, cannot be <code>null</code>.
+    *
+    * @return
+    *    the sum of the estimated costs of the files.
+    */
+   private static long cost(List<FileResult> batch) {
+      long cost = 0L;
+      for (FileResult result : batch) {
+         cost += result.getCost();
+      }
+      return cost;
+   }
+
+   /**
+    * Computes the difference between 2 measurements, each of which may be
+    * unknown.
+    *
+    * @param before
+    *    the first measurement, or -1 if unknown.
+    *
+    * @param after
+    *    the second measurement, or -1 if unknown.
+    *
+    * @return
+    *    the difference, or -1 if either measurement is unknown.
+    */
+   private static long difference(long before, long after) {
+      return (before < 0L || after < 0L) ? -1L : after - before;
+   }
+
+   /**
+    * Wraps each selected file in a unit of work of its own.
+    *
+    * @param selected
+    *    the selected files, cannot be <code>null</code>.
+    *
+    * @return
+    *    the units of work, each containing exactly one file,
+    *    never <code>null</code>.
+    */
+   private static List<List<FileResult>> createSingletons(List<FileResult> selected) {
+      List<List<FileResult>> batches = new ArrayList<List<FileResult>>(selected.size());
+      for (FileResult result : selected) {
+         List<FileResult> batch = new ArrayList<FileResult>(1);
+         batch.add(result);
+         batches.add(batch);
+      }
+      return batches;
+   }
+
+   /**
+    * Checks the options that are passed to the command.
+    *
+    * @throws BuildException
+    *    if any of the options has an invalid value.
+    */
+   private void checkArguments() throws BuildException {
+      if (_level != -1 && (_level < 0 || _level > 7)) {
+         throw new BuildException("Invalid value for \"level\" option: " + _level + ". Should be between 0 and 7.");
+      } else if (_interlace != -1 && _interlace != 0 && _interlace != 1) {
+         throw new BuildException("Invalid value for \"interlace\" option: " + _interlace + ". Should be 0 or 1.");
+      }
+      checkRanges("zc",      _zc);
+      checkRanges("zm",      _zm);
+      checkRanges("zs",      _zs);
+      checkRanges("filters", _filters);
+   }
+
+   /**
+    * Checks the value of an option that holds a list of numbers and
+    * ranges.
+    *
+    * @param name
+    *    the name of the option, cannot be <code>null</code>.
+    *
+    * @param value
+    *    the value of the option, can be <code>null</code>.
+    *
+    * @throws BuildException
+    *    if the value is set but invalid.
+    */
+   private static void checkRanges(String name, String value) throws BuildException {
+      if (value != null && ! RANGES.matcher(value.trim()).matches()) {
+         throw new BuildException("Invalid value for \"" + name + "\" option: " + quote(value) + ". Should be a list of numbers and ranges, e.g. \"1-9\".");
+      }
+   }
+
+   /**
+    * Returns the additional arguments to pass to the command, for each file.
+    * These are also part of the key for the optimization cache.
+    *
+    * @return
+    *    the arguments, never <code>null</code>.
+    */
+   private List<String> getArguments() {
+      List<String> arguments = new ArrayList<String>();
+      if (_level >= 0) {
+         arguments.add("-o" + _level);
+      }
+      addRanges(arguments, "-zc", _zc);
+      addRanges(arguments, "-zm", _zm);
+      addRanges(arguments, "-zs", _zs);
+      addRanges(arguments, "-f",  _filters);
+      if (_interlace >= 0) {
+         arguments.add("-i" + _interlace);
+      }
+      if (_strip) {
+         arguments.add("-strip");
+         arguments.add("all");
+      }
+      arguments.addAll(Arrays.asList(_args.getArguments()));
+      return arguments;
+   }
+
+   /**
+    * Adds an option that holds a list of numbers and ranges, if it is set.
+    *
+    * @param arguments
+    *    the arguments to add to, cannot be <code>null</code>.
+    *
+    * @param option
+    *    the option, e.g. <code>"-zc"</code>, cannot be <code>null</code>.
+    *
+    * @param value
+    *    the value of the option, or <code>null</code> if unset.
+    */
+   private static void addRanges(List<String> arguments, String option, String value) {
+      if (! isEmpty(value)) {
+         arguments.add(option + value.trim());
+      }
+   }
+
+   /**
+    * Determines the version of the specified optimizer. For a
+    * {@link CommandOptimizer} this tests that the command is available.
+    *
+    * @param optimizer
+    *    the optimizer, cannot be <code>null</code>.
+    *
+    * @param command
+    *    the command to test, cannot be <code>null</code> if the optimizer is
+    *    a {@link CommandOptimizer}.
+    *
+    * @param processOption
+    *    the process option, cannot be <code>null</code>.
+    *
+    * @return
+    *    the version, or <code>null</code> if the optimizer is unavailable or
+    *    should not be used at all.
+    *
+    * @throws BuildException
+    *    if the command is unavailable while
+    *    <code>processOption == {@linkplain ProcessOption#MUST}</code>.
+    */
+   private String determineVersion(Optimizer optimizer, String command, ProcessOption processOption)
+   throws BuildException {
+      String version;
+      if (processOption == ProcessOption.MUST_NOT) {
+         version = null;
+      } else if (optimizer instanceof InProcessOptimizer) {
+         version = ((InProcessOptimizer) optimizer).getVersion();
+         log("Using optimizer " + quote(optimizer.getName()) + ", version is " + quote(version) + '.', MSG_VERBOSE);
       } else {
-         log("" + optimizeCount + " file(s) optimized and " + copyCount + " file(s) copied in " + duration + " ms; " + skippedCount + " file(s) skipped.");
+         version = testCommand((CommandOptimizer) optimizer, command, processOption);
       }
+      return version;
    }
 
-   private boolean testCommand(String command, ProcessOption processOption)
+   /**
+    * Resolves the configured candidates for the best-of mode. Candidates
+    * that are unavailable are left out, unless
+    * <code>processOption == {@linkplain ProcessOption#MUST}</code>, in which
+    * case this task fails.
+    *
+    * @param processOption
+    *    the process option, cannot be <code>null</code>.
+    *
+    * @return
+    *    the available candidates, never <code>null</code>; empty if none is
+    *    available or if no files should be processed at all.
+    *
+    * @throws BuildException
+    *    if a candidate is invalid, or if it is unavailable while
+    *    <code>processOption == {@linkplain ProcessOption#MUST}</code>.
+    */
+   private List<BestOfOptimization.Contender> createContenders(ProcessOption processOption)
+   throws BuildException {
+
+      List<BestOfOptimization.Contender> contenders = new ArrayList<BestOfOptimization.Contender>(_candidates.size());
+      for (Candidate candidate : _candidates) {
+
+         // The engine and command of the task are the defaults
+         String        engine = ! isEmpty(candidate._engine) ? candidate._engine.trim()
+                              : ! isEmpty(_engine)           ? _engine.trim()
+                              : OptiPNGOptimizer.NAME;
+         Optimizer optimizer = findOptimizer(engine);
+         if (optimizer == null) {
+            throw new BuildException("Invalid value for \"engine\" option of candidate: " + quote(engine) + '.');
+         }
+         String command = null;
+         if (optimizer instanceof CommandOptimizer) {
+            command = ! isEmpty(candidate._command) ? candidate._command
+                    : ! isEmpty(_command)           ? _command
+                    : ((CommandOptimizer) optimizer).getDefaultCommand();
+         }
+
+         List<String> arguments = getArguments();
+         if (! isEmpty(candidate._args)) {
+            arguments.addAll(Arrays.asList(Commandline.translateCommandline(candidate._args)));
+         }
+
+         String version = determineVersion(optimizer, command, processOption);
+         if (version != null) {
+            String description = optimizer.getName();
+            if (command != null && ! command.equals(((CommandOptimizer) optimizer).getDefaultCommand())) {
+               description += " (" + command + ')';
+            }
+            description = (description + ' ' + join(arguments)).trim();
+            contenders.add(new BestOfOptimization.Contender(optimizer, command, arguments, version, description));
+         }
+      }
+      return contenders;
+   }
+
+   /**
+    * Finds the optimizer with the specified name. The built-in optimizers
+    * are checked first, then the ones registered through
+    * {@link ServiceLoader}.
+    *
+    * @param name
+    *    the name of the optimizer, cannot be <code>null</code>.
+    *
+    * @return
+    *    the optimizer, or <code>null</code> if there is no optimizer with
+    *    the specified name.
+    *
+    * @throws BuildException
+    *    if a registered optimizer cannot be loaded or implements neither
+    *    {@link CommandOptimizer} nor {@link InProcessOptimizer}.
+    */
+   private Optimizer findOptimizer(String name) throws BuildException {
+
+      // Check the built-in optimizers
+      if (OptiPNGOptimizer.NAME.equalsIgnoreCase(name)) {
+         return new OptiPNGOptimizer();
+      } else if (JavaOptimizer.NAME.equalsIgnoreCase(name)) {
+         return new JavaOptimizer();
+      }
+
+      // Check the registered optimizers
+      try {
+         for (Optimizer optimizer : ServiceLoader.load(Optimizer.class, getClass().getClassLoader())) {
+            if (name.equals(optimizer.getName())) {
+               if (! (optimizer instanceof CommandOptimizer || optimizer instanceof InProcessOptimizer)) {
+                  throw new BuildException("Optimizer " + quote(name) + " (class " + optimizer.getClass().getName() + ") implements neither " + CommandOptimizer.class.getName() + " nor " + InProcessOptimizer.class.getName() + '.');
+               }
+               return optimizer;
+            }
+         }
+      } catch (ServiceConfigurationError cause) {
+         throw new BuildException("Unable to load optimizers.", cause);
+      }
+
+      return null;
+   }
+
+   /**
+    * Joins the specified strings, separated by spaces.
+    *
+    * @param strings
+    *    the strings to join, cannot be <code>null</code>.
+    *
+    * @return
+    *    the joined string, never <code>null</code>.
+    */
+   static String join(List<String> strings) {
+      StringBuilder s = new StringBuilder();
+      for (String string : strings) {
+         if (s.length() > 0) {
+            s.append(' ');
+         }
+         s.append(string);
+      }
+      return s.toString();
+   }
+
+   /**
+    * Tests that the specified command is available, by executing its version
+    * command line. The version is cached for the lifetime of the JVM and, if
+    * a cache directory is configured, on disk, so the command is only
+    * executed again once the executable changes; see {@link VersionCache}.
+    *
+    * @param optimizer
+    *    the optimizer, cannot be <code>null</code>.
+    *
+    * @param command
+    *    the command to test, cannot be <code>null</code>.
+    *
+    * @param processOption
+    *    the process option, cannot be <code>null</code>.
+    *
+    * @return
+    *    the version reported by the command, <code>"unknown"</code> if the
+    *    version could not be determined, or <code>null</code> if the command
+    *    is unavailable or should not be used at all.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>optimizer == null || command == null || processOption == null</code>.
+    *
+    * @throws BuildException
+    *    if the command is unavailable while
+    *    <code>processOption == {@linkplain ProcessOption#MUST}</code>.
+    */
+   private String testCommand(CommandOptimizer optimizer, String command, ProcessOption processOption)
    throws IllegalArgumentException, BuildException {
 
       // Check preconditions
-      if (command == null) {
+      if (optimizer == null) {
+         throw new IllegalArgumentException("optimizer == null");
+      } else if (command == null) {
          throw new IllegalArgumentException("command == null");
       } else if (processOption == null) {
          throw new IllegalArgumentException("processOption == null");
@@ -566,16 +2102,27 @@ public final class OptiPNGTask extends MatchingTask {
 
       // Short-circuit if no command should be executed
       if (processOption == ProcessOption.MUST_NOT) {
-         return false;
+         return null;
+      }
+
+      // Reuse the version determined before, if the executable is unchanged
+      File executable = VersionCache.resolve(command);
+      String      key = (executable != null) ? VersionCache.key(optimizer, executable) : null;
+      if (key != null) {
+         String version = VersionCache.get(key, _cacheDir);
+         if (version != null) {
+            log("Using command " + quote(command) + ", version is " + quote(version) + " (cached).", MSG_VERBOSE);
+            return version;
+         }
       }
 
       // Create a watch dog, if a time-out is configured
-      ExecuteWatchdog watchdog = (_timeOut > 0L) ? new ExecuteWatchdog(_timeOut) : null;
+      ExecuteWatchdog watchdog = (_timeOut > 0L) ? new ScheduledWatchdog(_timeOut) : null;
 
       // Check that the command is executable
       Buffer    buffer = new Buffer();
       Execute  execute = new Execute(buffer, watchdog);
-      String[] cmdline = new String[] { command, "-version" };
+      String[] cmdline = optimizer.getVersionCommandLine(command);
       execute.setAntRun(getProject());
       execute.setCommandline(cmdline);
       Throwable caught;
@@ -587,36 +2134,41 @@ public final class OptiPNGTask extends MatchingTask {
       }
 
       // Executing the command triggered an exception
-      boolean commandAvailable;
+      String version;
       if (caught != null) {
-         String message = "Unable to execute OptiPNG command " + quote(command) + '.';
+         String message = "Unable to execute command " + quote(command) + '.';
          if (processOption == ProcessOption.MUST) {
             throw new BuildException(message, caught);
          } else {
             log(message, MSG_ERR);
-            commandAvailable = false;
+            version = null;
          }
 
       // Executing the command resulted in a non-zero code, indicating failure
       } else if (execute.getExitValue() != 0) {
-         String message = "Unable to execute OptiPNG command " + quote(command) + ". Running '" + command + " -v' resulted in exit code " + execute.getExitValue() + '.';
+         String message = "Unable to execute command " + quote(command) + ". Running " + quote(join(Arrays.asList(cmdline))) + " resulted in exit code " + execute.getExitValue() + '.';
          if (processOption == ProcessOption.MUST) {
             throw new BuildException(message);
          } else {
             log(message, MSG_ERR);
-            commandAvailable = false;
+            version = null;
          }
 
       // Command was executed successfully
       } else {
-         Pattern pattern = Pattern.compile("^[^0-9]*([0-9]+(\\.[0-9]+)*)");
-         Matcher matcher = pattern.matcher(buffer.getOutString());
-         String  version = matcher.find() ? quote(matcher.group(1)) : "unknown";
-         log("Using command " + quote(command) + ", version is " + version + '.', MSG_VERBOSE);
-         commandAvailable = true;
+         version = optimizer.parseVersion(buffer.getOutString(), buffer.getErrString());
+         version = (version == null) ? "unknown" : version;
+         log("Using command " + quote(command) + ", version is " + quote(version) + '.', MSG_VERBOSE);
+         if (key != null) {
+            try {
+               VersionCache.put(key, version, _cacheDir);
+            } catch (IOException cause) {
+               log("Unable to cache the version of command " + quote(command) + ": " + cause.getMessage(), MSG_VERBOSE);
+            }
+         }
       }
 
-      return commandAvailable;
+      return version;
    }
 
 
@@ -625,27 +2177,168 @@ public final class OptiPNGTask extends MatchingTask {
    //-------------------------------------------------------------------------
 
    /**
-    * Enumeration type for the different process options.
+    * Collector of the results of the files, as they become available. Each
+    * result is logged, written to the report and added to the totals.
     *
     * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
     */
-   private enum ProcessOption {
+   private final class Collector extends Object {
 
       /**
-       * Force processing with OptiPNG. If the OptiPNG command is not
-       * available, then fail.
+       * Constructs a new <code>Collector</code> with all totals set to 0.
+       *
+       * @param report
+       *    the report to add each result to, or <code>null</code> if no
+       *    report is written.
        */
-      MUST,
-         
+      Collector(Report report) {
+         _report = report;
+      }
+
       /**
-       * Skip OptiPNG processing completely. Just copy the files.
+       * The report, or <code>null</code> if none is written.
        */
-      MUST_NOT,
+      private final Report _report;
 
       /**
-       * Try OptiPNG processing. If the processing fails, then copy the
-       * original file.
+       * The total number of failures, see {@link FileResult#getFailedCount()}.
+       * A single file can fail more than once.
        */
-      SHOULD;
+      int _failedCount;
+
+      /**
+       * The number of files optimized, including those restored from the
+       * cache.
+       */
+      int _optimizeCount;
+
+      /**
+       * The number of files copied as-is instead of optimized, including
+       * those counted in {@link #_overBudgetCount} and
+       * {@link #_lowYieldCount}.
+       */
+      int _copyCount;
+
+      /**
+       * The number of files of which the original was kept, because
+       * optimizing them did not make them smaller.
+       */
+      int _keptCount;
+
+      /**
+       * The number of files skipped, e.g. because they are not PNG files or
+       * are already optimized according to the manifest.
+       */
+      int _skippedCount;
+
+      /**
+       * The number of files not optimized because the time budget was
+       * exhausted, see {@link FileResult#isOverBudget()}.
+       */
+      int _overBudgetCount;
+
+      /**
+       * The number of files not optimized because the predicted savings are
+       * too low, see {@link FileResult#isLowYield()}.
+       */
+      int _lowYieldCount;
+
+      /**
+       * Collects the specified result. Must be called from the thread that
+       * executes this task.
+       *
+       * @param result
+       *    the result, cannot be <code>null</code>.
+       */
+      void collect(FileResult result) {
+         result.replayLog(OptiPNGTask.this);
+         if (_report != null) {
+            _report.add(result);
+         }
+         _failedCount     += result.getFailedCount();
+         _optimizeCount   += result.getOptimizeCount();
+         _copyCount       += result.getCopyCount();
+         _keptCount       += result.getKeptCount();
+         _skippedCount    += result.getSkippedCount();
+         _overBudgetCount += result.isOverBudget() ? 1 : 0;
+         _lowYieldCount   += result.isLowYield()   ? 1 : 0;
+      }
    }
+
+   /**
+    * A nested <code>&lt;candidate&gt;</code> element, configuring one of the
+    * optimizers that are raced against each other in best-of mode. All
+    * attributes are optional:
+    *
+    * <dl>
+    * <dt>engine
+    * <dd>The optimization engine, see {@link OptiPNGTask#setEngine(String)}.
+    *     Defaults to the engine of the task.
+    *
+    * <dt>command
+    * <dd>The command to execute, if the engine executes a command.
+    *     Defaults to the command of the task.
+    *
+    * <dt>args
+    * <dd>Additional arguments to pass to the command, separated by spaces,
+    *     e.g. <code>"-o7 -zm1-9"</code>.
+    * </dl>
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   public static final class Candidate extends Object {
+
+      /**
+       * Constructs a new <code>Candidate</code>.
+       */
+      public Candidate() {
+         // empty
+      }
+
+      /**
+       * The name of the engine, or <code>null</code> if unset.
+       */
+      private String _engine;
+
+      /**
+       * The command to execute, or <code>null</code> if unset.
+       */
+      private String _command;
+
+      /**
+       * The additional arguments, or <code>null</code> if unset.
+       */
+      private String _args;
+
+      /**
+       * Sets the optimization engine.
+       *
+       * @param s
+       *    the name of the engine, or <code>null</code>.
+       */
+      public void setEngine(String s) {
+         _engine = s;
+      }
+
+      /**
+       * Sets the command to execute.
+       *
+       * @param command
+       *    the command, or <code>null</code>.
+       */
+      public void setCommand(String command) {
+         _command = command;
+      }
+
+      /**
+       * Sets the additional arguments to pass to the command.
+       *
+       * @param args
+       *    the arguments, separated by spaces, or <code>null</code>.
+       */
+      public void setArgs(String args) {
+         _args = args;
+      }
+   }
+
 }
@@ -0,0 +1,369 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Persistent cache of optimized PNG files, stored in a local directory. Each
+ * entry is keyed by the SHA-256 digest of the input file contents, combined
+ * with the version of the OptiPNG command and the options passed to it. If
+ * any of these changes, then the entry is simply not found anymore.
+ *
+ * <p>Files that the optimizer leaves unchanged are not stored in full.
+ * Instead, an empty marker file is stored for them, see
+ * {@link #storeUnchanged(String)}. Such files can then be copied or linked
+ * directly from the input file.
+ *
+ * <p>This class is thread-safe. Entries are first written to a temporary
+ * file and then renamed, so concurrent readers never see a partially
+ * written entry.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class OptimizationCache extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The name of the digest algorithm used: <code>"SHA-256"</code>.
+    */
+   private static final String DIGEST_ALGORITHM = "SHA-256";
+
+   /**
+    * Hexadecimal digits, used for converting a digest to a string.
+    */
+   private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Computes the SHA-256 digest of the specified salt, followed by the
+    * contents of the specified file.
+    *
+    * @param salt
+    *    the salt to prepend, cannot be <code>null</code>.
+    *
+    * @param file
+    *    the file to compute the digest for, cannot be <code>null</code>.
+    *
+    * @return
+    *    the digest as a lowercase hexadecimal string, never
+    *    <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static String digest(String salt, File file) throws IOException {
+
+      MessageDigest digest = createDigest();
+      digest.update(salt.getBytes("UTF-8"));
+      digest.update((byte) 0);
+
+      InputStream in = new FileInputStream(file);
+      try {
+         byte[] buffer = new byte[64 * 1024];
+         int count;
+         while ((count = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, count);
+         }
+      } finally {
+         in.close();
+      }
+
+      return toHex(digest.digest());
+   }
+
+   /**
+    * Computes the SHA-256 digest of the specified string.
+    *
+    * @param string
+    *    the string, cannot be <code>null</code>.
+    *
+    * @return
+    *    the digest as a lowercase hexadecimal string, never
+    *    <code>null</code>.
+    */
+   static String digest(String string) {
+      MessageDigest digest = createDigest();
+      try {
+         return toHex(digest.digest(string.getBytes("UTF-8")));
+      } catch (UnsupportedEncodingException cause) {
+         throw new Error("Encoding UTF-8 unavailable.", cause);
+      }
+   }
+
+   /**
+    * Combines the version of the OptiPNG command and the options passed to
+    * it into the salt that distinguishes the results of different settings.
+    *
+    * @param version
+    *    the version of the OptiPNG command, cannot be <code>null</code>.
+    *
+    * @param options
+    *    the options passed to the OptiPNG command, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    the salt, never <code>null</code>.
+    */
+   static String salt(String version, String options) {
+      return version + '\u0000' + options;
+   }
+
+   /**
+    * Creates a new SHA-256 message digest.
+    *
+    * @return
+    *    the message digest, never <code>null</code>.
+    */
+   private static MessageDigest createDigest() {
+      try {
+         return MessageDigest.getInstance(DIGEST_ALGORITHM);
+      } catch (NoSuchAlgorithmException cause) {
+         throw new Error("Digest algorithm " + DIGEST_ALGORITHM + " unavailable.", cause);
+      }
+   }
+
+   /**
+    * Converts the specified bytes to a hexadecimal string.
+    *
+    * @param bytes
+    *    the bytes, cannot be <code>null</code>.
+    *
+    * @return
+    *    the lowercase hexadecimal string, never <code>null</code>.
+    */
+   private static String toHex(byte[] bytes) {
+      StringBuilder s = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+         s.append(HEX_DIGITS[(b >> 4) & 0x0f]);
+         s.append(HEX_DIGITS[b & 0x0f]);
+      }
+      return s.toString();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>OptimizationCache</code>.
+    *
+    * @param dir
+    *    the cache directory, cannot be <code>null</code>; will be created if
+    *    it does not exist yet.
+    *
+    * @param version
+    *    the version of the OptiPNG command, cannot be <code>null</code>.
+    *
+    * @param options
+    *    the options passed to the OptiPNG command, cannot be
+    *    <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>dir == null || version == null || options == null</code>.
+    *
+    * @throws IOException
+    *    if the directory does not exist and cannot be created.
+    */
+   OptimizationCache(File dir, String version, String options)
+   throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (dir == null) {
+         throw new IllegalArgumentException("dir == null");
+      } else if (version == null) {
+         throw new IllegalArgumentException("version == null");
+      } else if (options == null) {
+         throw new IllegalArgumentException("options == null");
+      }
+
+      // Make sure the directory exists
+      if (! dir.isDirectory() && ! dir.mkdirs()) {
+         throw new IOException("Unable to create cache directory \"" + dir + "\".");
+      }
+
+      _dir  = dir;
+      _salt = salt(version, options);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The cache directory. Never <code>null</code>.
+    */
+   private final File _dir;
+
+   /**
+    * The salt that is prepended to the file contents when computing a key,
+    * consisting of the command version and the options. Never
+    * <code>null</code>.
+    */
+   private final String _salt;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Computes the cache key for the specified input file.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the cache key, never <code>null</code>.
+    *
+    * @throws IOException
+    *    in case the file cannot be read.
+    */
+   String key(File inFile) throws IOException {
+      return digest(_salt, inFile);
+   }
+
+   /**
+    * Determines the location of the entry for the specified key. Entries are
+    * spread over subdirectories, based on the first 2 characters of the key.
+    *
+    * @param key
+    *    the cache key, cannot be <code>null</code>.
+    *
+    * @return
+    *    the location of the entry, never <code>null</code>.
+    */
+   private File entryFile(String key) {
+      return new File(new File(_dir, key.substring(0, 2)), key + ".png");
+   }
+
+   /**
+    * Determines the location of the marker for the specified key, which
+    * indicates that the optimizer leaves the input file unchanged.
+    *
+    * @param key
+    *    the cache key, cannot be <code>null</code>.
+    *
+    * @return
+    *    the location of the marker, never <code>null</code>.
+    */
+   private File markerFile(String key) {
+      return new File(new File(_dir, key.substring(0, 2)), key + ".unchanged");
+   }
+
+   /**
+    * Attempts to write the cached optimized file for the specified key to
+    * the specified output file.
+    *
+    * @param key
+    *    the cache key, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the file to write to, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if the entry was found and written to
+    *    <code>outFile</code>; <code>false</code> if there is no entry.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   boolean restore(String key, File outFile) throws IOException {
+      File entry = entryFile(key);
+      if (! entry.isFile() || entry.length() < 1L) {
+         return false;
+      }
+      Copier.copy(entry, outFile, Copier.LinkMode.NONE);
+      return true;
+   }
+
+   /**
+    * Stores the specified optimized file under the specified key.
+    *
+    * @param key
+    *    the cache key, cannot be <code>null</code>.
+    *
+    * @param optimizedFile
+    *    the optimized file, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void store(String key, File optimizedFile) throws IOException {
+      File entry = entryFile(key);
+      File   dir = entry.getParentFile();
+      createDir(dir);
+
+      File temp = File.createTempFile(key, ".tmp", dir);
+      try {
+         Copier.copy(optimizedFile, temp, Copier.LinkMode.NONE);
+         if (! temp.renameTo(entry) && ! entry.isFile()) {
+            throw new IOException("Unable to rename \"" + temp + "\" to \"" + entry + "\".");
+         }
+      } finally {
+         temp.delete();
+      }
+   }
+
+   /**
+    * Checks if the optimizer is known to leave the input file for the
+    * specified key unchanged.
+    *
+    * @param key
+    *    the cache key, cannot be <code>null</code>.
+    *
+    * @return
+    *    <code>true</code> if there is a marker for the key, see
+    *    {@link #storeUnchanged(String)}; <code>false</code> otherwise.
+    */
+   boolean isUnchanged(String key) {
+      return markerFile(key).isFile();
+   }
+
+   /**
+    * Records that the optimizer leaves the input file for the specified key
+    * unchanged, e.g. because it is already optimized.
+    *
+    * @param key
+    *    the cache key, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void storeUnchanged(String key) throws IOException {
+      File marker = markerFile(key);
+      createDir(marker.getParentFile());
+      if (! marker.createNewFile() && ! marker.isFile()) {
+         throw new IOException("Unable to create \"" + marker + "\".");
+      }
+   }
+
+   /**
+    * Makes sure the specified directory within the cache exists.
+    *
+    * @param dir
+    *    the directory, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the directory does not exist and cannot be created.
+    */
+   private static void createDir(File dir) throws IOException {
+      if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+         throw new IOException("Unable to create cache directory \"" + dir + "\".");
+      }
+   }
+}
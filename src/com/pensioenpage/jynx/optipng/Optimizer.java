@@ -0,0 +1,32 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+/**
+ * A PNG optimizer that can be used by the {@link OptiPNGTask}. Each
+ * optimizer is either a {@link CommandOptimizer}, which executes an external
+ * command, or an {@link InProcessOptimizer}, which runs inside the JVM.
+ *
+ * <p>The built-in optimizers are <code>"optipng"</code> (the default) and
+ * <code>"java"</code>. Additional optimizers are discovered using
+ * {@link java.util.ServiceLoader}: an implementation is registered by
+ * listing its class name in the resource
+ * <code>META-INF/services/com.pensioenpage.jynx.optipng.Optimizer</code>.
+ * It is then selected by setting the <em>engine</em> parameter of the task
+ * to the name returned by {@link #getName()}.
+ *
+ * <p>Implementations must be thread-safe and must have a public no-argument
+ * constructor.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+public interface Optimizer {
+
+   /**
+    * Returns the name of this optimizer, as used for the <em>engine</em>
+    * parameter of the task.
+    *
+    * @return
+    *    the name, e.g. <code>"optipng"</code>, never <code>null</code>.
+    */
+   String getName();
+}
@@ -0,0 +1,164 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+/**
+ * The image header of a PNG file, i.e. the contents of its
+ * <code>IHDR</code> chunk. Only the first 29 bytes of a file are read to
+ * determine it, so this is cheap enough to do for every file.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class PNGHeader extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The signature at the start of each PNG file.
+    */
+   static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+   /**
+    * The number of bytes that need to be read: the signature, the length
+    * and type of the <code>IHDR</code> chunk and its 13 data bytes.
+    */
+   static final int LENGTH = 8 + 8 + 13;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Parses the header from the specified bytes.
+    *
+    * @param bytes
+    *    the first bytes of the file, cannot be <code>null</code>.
+    *
+    * @param count
+    *    the number of valid bytes in <code>bytes</code>.
+    *
+    * @return
+    *    the header, or <code>null</code> if the bytes do not start with a
+    *    valid PNG signature and <code>IHDR</code> chunk.
+    */
+   static PNGHeader parse(byte[] bytes, int count) {
+      if (count < LENGTH) {
+         return null;
+      }
+      for (int i = 0; i < SIGNATURE.length; i++) {
+         if (bytes[i] != SIGNATURE[i]) {
+            return null;
+         }
+      }
+      if (readInt(bytes, 8) != 13 || bytes[12] != 'I' || bytes[13] != 'H' || bytes[14] != 'D' || bytes[15] != 'R') {
+         return null;
+      }
+
+      long  width = readInt(bytes, 16) & 0xffffffffL;
+      long height = readInt(bytes, 20) & 0xffffffffL;
+      int bitDepth  = bytes[24] & 0xff;
+      int colorType = bytes[25] & 0xff;
+      if (width < 1L || height < 1L) {
+         return null;
+      }
+      return new PNGHeader(width, height, bitDepth, colorType);
+   }
+
+   /**
+    * Reads a big-endian 32-bit integer.
+    *
+    * @param bytes
+    *    the bytes to read from, cannot be <code>null</code>.
+    *
+    * @param offset
+    *    the offset of the first byte.
+    *
+    * @return
+    *    the integer.
+    */
+   private static int readInt(byte[] bytes, int offset) {
+      return ((bytes[offset]     & 0xff) << 24)
+           | ((bytes[offset + 1] & 0xff) << 16)
+           | ((bytes[offset + 2] & 0xff) <<  8)
+           |  (bytes[offset + 3] & 0xff);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>PNGHeader</code>.
+    *
+    * @param width
+    *    the width of the image, in pixels.
+    *
+    * @param height
+    *    the height of the image, in pixels.
+    *
+    * @param bitDepth
+    *    the number of bits per sample or palette index.
+    *
+    * @param colorType
+    *    the PNG color type.
+    */
+   private PNGHeader(long width, long height, int bitDepth, int colorType) {
+      _width     = width;
+      _height    = height;
+      _bitDepth  = bitDepth;
+      _colorType = colorType;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The width of the image, in pixels.
+    */
+   private final long _width;
+
+   /**
+    * The height of the image, in pixels.
+    */
+   private final long _height;
+
+   /**
+    * The number of bits per sample or palette index.
+    */
+   private final int _bitDepth;
+
+   /**
+    * The PNG color type.
+    */
+   private final int _colorType;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Returns the size of the uncompressed image data, which is what an
+    * optimizer has to compress over and over again.
+    *
+    * @return
+    *    the number of bytes of the raw image data, including the filter
+    *    type byte of each row.
+    */
+   long getRawSize() {
+      int samples;
+      switch (_colorType) {
+         case 2:  samples = 3; break; // RGB
+         case 4:  samples = 2; break; // grayscale with alpha
+         case 6:  samples = 4; break; // RGB with alpha
+         default: samples = 1; break; // grayscale or palette
+      }
+      long bitsPerRow = _width * samples * _bitDepth;
+      return ((bitsPerRow + 7L) / 8L + 1L) * _height;
+   }
+}
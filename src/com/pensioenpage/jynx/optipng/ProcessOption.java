@@ -0,0 +1,27 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+/**
+ * Enumeration type for the different process options.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+enum ProcessOption {
+
+   /**
+    * Force processing with OptiPNG. If the OptiPNG command is not
+    * available, then fail.
+    */
+   MUST,
+
+   /**
+    * Skip OptiPNG processing completely. Just copy the files.
+    */
+   MUST_NOT,
+
+   /**
+    * Try OptiPNG processing. If the processing fails, then copy the
+    * original file.
+    */
+   SHOULD;
+}
@@ -0,0 +1,302 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+
+/**
+ * Writer of the per-file report. For each file there is one record with the
+ * input size, the output size, the savings ratio, the wall clock time, the
+ * CPU time of the worker thread and of child processes, the action taken
+ * and, if skipped, the reason. Unknown values are left empty (CSV) or are
+ * <code>null</code> (JSON).
+ *
+ * <p>The format depends on the extension of the report file: if it ends in
+ * <code>".csv"</code> (case-insensitive), then CSV with a header line is
+ * written, otherwise a JSON array with one object per line.
+ *
+ * <p>Records are written one by one as the results become available, so
+ * the results do not all need to be kept in memory.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class Report extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The character encoding used for the report: UTF-8.
+    */
+   private static final String ENCODING = "UTF-8";
+
+   /**
+    * The names of the fields, in the order they are written.
+    */
+   private static final String[] FIELDS = {
+      "file", "action", "skipReason", "inBytes", "outBytes", "ratio",
+      "wallMillis", "cpuMillis", "childCpuMillis"
+   };
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Opens a report for writing to the specified file. The records are then
+    * written one by one, as the results become available, see
+    * {@link #add(FileResult)}.
+    *
+    * @param file
+    *    the report file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the report, never <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>file == null</code>.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   static Report open(File file) throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (file == null) {
+         throw new IllegalArgumentException("file == null");
+      }
+
+      // Make sure the parent directory exists
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+         throw new IOException("Unable to create directory \"" + dir + "\".");
+      }
+
+      boolean     csv = file.getName().toLowerCase(Locale.ENGLISH).endsWith(".csv");
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+      return new Report(file, out, csv);
+   }
+
+   /**
+    * Determines the values of the fields for the specified result, in the
+    * order of {@link #FIELDS}.
+    *
+    * @param result
+    *    the result, cannot be <code>null</code>.
+    *
+    * @return
+    *    the values, with <code>null</code> for unknown values, never
+    *    <code>null</code>.
+    */
+   private static Object[] values(FileResult result) {
+      long        inSize = result.getInSize();
+      long       outSize = result.getOutSize();
+      BigDecimal   ratio = (inSize > 0L && outSize >= 0L)
+                       ? new BigDecimal(1.0 - ((double) outSize / (double) inSize)).setScale(4, RoundingMode.HALF_UP)
+                       : null;
+      return new Object[] {
+         result.getFileName(),
+         result.getAction(),
+         result.getSkipReason(),
+         known(inSize),
+         known(outSize),
+         ratio,
+         known(result.getDuration()),
+         known(result.getCpuTime()),
+         known(result.getChildCpuTime())
+      };
+   }
+
+   /**
+    * Converts a number that is -1 if unknown.
+    *
+    * @param n
+    *    the number.
+    *
+    * @return
+    *    the number, or <code>null</code> if it is negative.
+    */
+   private static Long known(long n) {
+      return (n < 0L) ? null : Long.valueOf(n);
+   }
+
+   /**
+    * Quotes the specified string for CSV, if necessary.
+    *
+    * @param s
+    *    the string, cannot be <code>null</code>.
+    *
+    * @return
+    *    the string, quoted if it contains a comma, a double quote or a line
+    *    break, never <code>null</code>.
+    */
+   private static String csvQuote(String s) {
+      if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+         return s;
+      }
+      return '"' + s.replace("\"", "\"\"") + '"';
+   }
+
+   /**
+    * Quotes the specified string as a JSON string literal.
+    *
+    * @param s
+    *    the string, cannot be <code>null</code>.
+    *
+    * @return
+    *    the JSON string literal, never <code>null</code>.
+    */
+   private static String jsonQuote(String s) {
+      StringBuilder q = new StringBuilder(s.length() + 2);
+      q.append('"');
+      for (int i = 0; i < s.length(); i++) {
+         char c = s.charAt(i);
+         if (c == '"' || c == '\\') {
+            q.append('\\').append(c);
+         } else if (c < 0x20) {
+            q.append(String.format("\\u%04x", (int) c));
+         } else {
+            q.append(c);
+         }
+      }
+      return q.append('"').toString();
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>Report</code> and writes the start of it.
+    *
+    * @param file
+    *    the report file, cannot be <code>null</code>.
+    *
+    * @param out
+    *    the writer to write to, cannot be <code>null</code>.
+    *
+    * @param csv
+    *    <code>true</code> for CSV, <code>false</code> for JSON.
+    */
+   private Report(File file, PrintWriter out, boolean csv) {
+      _file  = file;
+      _out   = out;
+      _csv   = csv;
+      _first = true;
+      _line  = new StringBuilder();
+
+      if (csv) {
+         for (String field : FIELDS) {
+            _line.append(_line.length() > 0 ? "," : "").append(field);
+         }
+         _out.print(_line.append("\r\n"));
+      } else {
+         _out.print('[');
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The report file. Never <code>null</code>.
+    */
+   private final File _file;
+
+   /**
+    * The writer to write to. Never <code>null</code>.
+    */
+   private final PrintWriter _out;
+
+   /**
+    * Flag that indicates if CSV is written, rather than JSON.
+    */
+   private final boolean _csv;
+
+   /**
+    * Flag that indicates if no record has been written yet.
+    */
+   private boolean _first;
+
+   /**
+    * Buffer for a single record. Never <code>null</code>.
+    */
+   private final StringBuilder _line;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Writes the record for the specified result. Results for which no action
+    * was taken at all are left out.
+    *
+    * @param result
+    *    the result, cannot be <code>null</code>.
+    */
+   void add(FileResult result) {
+      if (result.getAction() == null) {
+         return;
+      }
+
+      _line.setLength(0);
+      Object[] values = values(result);
+      if (_csv) {
+         for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+               _line.append(',');
+            }
+            if (values[i] instanceof String) {
+               _line.append(csvQuote((String) values[i]));
+            } else if (values[i] != null) {
+               _line.append(values[i]);
+            }
+         }
+         _line.append("\r\n");
+      } else {
+         _line.append(_first ? "\n  {" : ",\n  {");
+         for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+               _line.append(", ");
+            }
+            _line.append(jsonQuote(FIELDS[i])).append(": ");
+            if (values[i] instanceof String) {
+               _line.append(jsonQuote((String) values[i]));
+            } else {
+               _line.append(values[i]);
+            }
+         }
+         _line.append('}');
+      }
+      _out.print(_line);
+      _first = false;
+   }
+
+   /**
+    * Writes the end of the report and closes it.
+    *
+    * @throws IOException
+    *    if any of the writes failed.
+    */
+   void close() throws IOException {
+      if (! _csv) {
+         _out.print("\n]\n");
+      }
+      _out.close();
+      if (_out.checkError()) {
+         throw new IOException("Unable to write report file \"" + _file + "\".");
+      }
+   }
+}
@@ -0,0 +1,217 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent history of the savings achieved for each input file. For each
+ * file that was optimized, the size and modification time of the input file
+ * are recorded together with the size of the optimized file. As long as an
+ * input file is unchanged, optimizing it again will achieve the same
+ * savings, so these can be predicted without reading the file at all.
+ *
+ * <p>The history is a text file, with one line per file:
+ * <blockquote><code><em>inSize</em> <em>lastModified</em>
+ * <em>outSize</em> <em>name</em></code></blockquote>
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class SavingsHistory extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The character encoding used for the file: UTF-8.
+    */
+   private static final String ENCODING = "UTF-8";
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>SavingsHistory</code>, reading the entries from
+    * the specified file, if it exists.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>file == null</code>.
+    *
+    * @throws IOException
+    *    if the file exists but cannot be read.
+    */
+   SavingsHistory(File file) throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (file == null) {
+         throw new IllegalArgumentException("file == null");
+      }
+
+      _file    = file;
+      _entries = new ConcurrentHashMap<String,Entry>();
+
+      // Read the existing entries, ignoring malformed lines
+      if (file.exists()) {
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               String[] parts = line.split(" ", 4);
+               if (parts.length == 4) {
+                  try {
+                     _entries.put(parts[3], new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                  } catch (NumberFormatException cause) {
+                     // ignore
+                  }
+               }
+            }
+         } finally {
+            reader.close();
+         }
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The file. Never <code>null</code>.
+    */
+   private final File _file;
+
+   /**
+    * The entries, keyed by file name. Never <code>null</code>.
+    */
+   private final Map<String,Entry> _entries;
+
+   /**
+    * Flag that indicates if the entries changed since they were read.
+    */
+   private volatile boolean _modified;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Predicts the savings for the specified input file, based on the
+    * savings achieved the last time it was optimized.
+    *
+    * @param name
+    *    the name of the file, relative to the source directory, cannot be
+    *    <code>null</code>.
+    *
+    * @param size
+    *    the current size of the input file, in bytes.
+    *
+    * @param lastModified
+    *    the current modification time of the input file.
+    *
+    * @return
+    *    the predicted savings as a fraction of the input size (0 or more),
+    *    or -1 if the file is not recorded or has changed since.
+    */
+   double predict(String name, long size, long lastModified) {
+      Entry entry = _entries.get(name);
+      if (entry == null || entry._size != size || entry._lastModified != lastModified || size < 1L) {
+         return -1.0;
+      }
+      return Math.max(0.0, 1.0 - (double) entry._outSize / size);
+   }
+
+   /**
+    * Records the savings achieved for the specified input file.
+    *
+    * @param name
+    *    the name of the file, relative to the source directory, cannot be
+    *    <code>null</code>.
+    *
+    * @param size
+    *    the size of the input file, in bytes.
+    *
+    * @param lastModified
+    *    the modification time of the input file.
+    *
+    * @param outSize
+    *    the size of the optimized file, in bytes.
+    */
+   void record(String name, long size, long lastModified, long outSize) {
+      _entries.put(name, new Entry(size, lastModified, outSize));
+      _modified = true;
+   }
+
+   /**
+    * Writes the entries to the file, if they were modified. The entries are
+    * written sorted by name, to a temporary file that then replaces the
+    * file.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void save() throws IOException {
+      if (! _modified) {
+         return;
+      }
+
+      List<String> lines = new ArrayList<String>(_entries.size());
+      for (Map.Entry<String,Entry> e : new TreeMap<String,Entry>(_entries).entrySet()) {
+         Entry entry = e.getValue();
+         lines.add(entry._size + " " + entry._lastModified + ' ' + entry._outSize + ' ' + e.getKey());
+      }
+      Copier.writeLines(_file, lines);
+      _modified = false;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * A single entry in the history.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   private static final class Entry extends Object {
+
+      Entry(long size, long lastModified, long outSize) {
+         _size         = size;
+         _lastModified = lastModified;
+         _outSize      = outSize;
+      }
+
+      /**
+       * The size of the input file, in bytes.
+       */
+      final long _size;
+
+      /**
+       * The modification time of the input file.
+       */
+      final long _lastModified;
+
+      /**
+       * The size of the optimized file, in bytes.
+       */
+      final long _outSize;
+   }
+}
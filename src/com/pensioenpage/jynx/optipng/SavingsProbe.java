@@ -0,0 +1,224 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cheap estimate of the savings that optimizing a PNG file will achieve. The
+ * first part of the compressed image data, at most {@link #SAMPLE_LENGTH}
+ * bytes, is decompressed, up to at most {@link #RAW_LIMIT} bytes, and then
+ * compressed again at the highest zlib level. The relative difference in
+ * size is then applied to all image data in the file.
+ *
+ * <p>Since only the compression is redone, not the filtering or the color
+ * type reduction that optimizers perform as well, the estimate tends to be
+ * lower than the actual savings. Files may therefore be considered
+ * low-yield even though optimizing them would save more than required.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class SavingsProbe extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The maximum number of bytes of compressed image data that is sampled:
+    * 64 KiB.
+    */
+   static final int SAMPLE_LENGTH = 64 * 1024;
+
+   /**
+    * The maximum number of bytes of decompressed image data that is
+    * compressed again: 256 KiB. Highly compressed image data can expand
+    * enormously, so only the part of the sample that decompresses to at
+    * most this many bytes is used.
+    */
+   static final int RAW_LIMIT = 256 * 1024;
+
+   /**
+    * The deflate strategies to try.
+    */
+   private static final int[] STRATEGIES = { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED };
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Estimates the savings for the specified PNG file.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the estimated savings as a fraction of the file size (0 or more), or
+    *    -1 if they cannot be estimated, e.g. because the file is not a valid
+    *    PNG file.
+    */
+   static double probe(File file) {
+      long fileSize = file.length();
+      if (fileSize < 1L) {
+         return -1.0;
+      }
+
+      // Walk the chunks, sampling the start of the image data and adding up
+      // the total size of the image data
+      ByteArrayOutputStream sample = new ByteArrayOutputStream();
+      long                idatSize = 0L;
+      try {
+         DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         try {
+            byte[] signature = new byte[PNGHeader.SIGNATURE.length];
+            in.readFully(signature);
+            for (int i = 0; i < signature.length; i++) {
+               if (signature[i] != PNGHeader.SIGNATURE[i]) {
+                  return -1.0;
+               }
+            }
+
+            byte[] type = new byte[4];
+            boolean end = false;
+            while (! end) {
+               long length = in.readInt() & 0xffffffffL;
+               in.readFully(type);
+               long skip = length + 4L; // the data and the CRC
+               if (type[0] == 'I' && type[1] == 'D' && type[2] == 'A' && type[3] == 'T') {
+                  idatSize += length;
+                  int n = (int) Math.min(length, SAMPLE_LENGTH - sample.size());
+                  if (n > 0) {
+                     byte[] data = new byte[n];
+                     in.readFully(data);
+                     sample.write(data, 0, n);
+                     skip -= n;
+                  }
+               } else {
+                  end = type[0] == 'I' && type[1] == 'E' && type[2] == 'N' && type[3] == 'D';
+               }
+               skipFully(in, skip);
+            }
+         } finally {
+            in.close();
+         }
+      } catch (IOException cause) {
+         return -1.0;
+      }
+      if (sample.size() < 1) {
+         return -1.0;
+      }
+
+      // Decompress the sample, as far as it goes, but no further than the
+      // limit; the compressed bytes consumed so far correspond to the output
+      byte[] compressed = sample.toByteArray();
+      long     consumed;
+      byte[]        raw;
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(compressed);
+         ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(RAW_LIMIT, compressed.length * 4L));
+         byte[] buffer = new byte[64 * 1024];
+         while (! inflater.finished() && out.size() < RAW_LIMIT) {
+            int count = inflater.inflate(buffer, 0, Math.min(buffer.length, RAW_LIMIT - out.size()));
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               break;
+            }
+            out.write(buffer, 0, count);
+         }
+         consumed = inflater.getBytesRead();
+         raw      = out.toByteArray();
+      } catch (DataFormatException cause) {
+         return -1.0;
+      } finally {
+         inflater.end();
+      }
+      if (consumed < 1L || raw.length < 1) {
+         return -1.0;
+      }
+
+      // Compress the sample again and extrapolate the difference
+      long best = Long.MAX_VALUE;
+      for (int strategy : STRATEGIES) {
+         best = Math.min(best, deflatedSize(raw, strategy));
+      }
+      double ratio = (double) (consumed - best) / consumed;
+      return Math.max(0.0, ratio * idatSize / fileSize);
+   }
+
+   /**
+    * Skips exactly the specified number of bytes.
+    *
+    * @param in
+    *    the stream to skip in, cannot be <code>null</code>.
+    *
+    * @param count
+    *    the number of bytes to skip.
+    *
+    * @throws IOException
+    *    in case of an I/O error or if the end of the stream is reached.
+    */
+   private static void skipFully(DataInputStream in, long count) throws IOException {
+      while (count > 0L) {
+         long skipped = in.skip(count);
+         if (skipped < 1L) {
+            if (in.read() < 0) {
+               throw new EOFException();
+            }
+            skipped = 1L;
+         }
+         count -= skipped;
+      }
+   }
+
+   /**
+    * Determines the size of the specified data when compressed using the
+    * zlib format, at the maximum compression level.
+    *
+    * @param data
+    *    the data to compress, cannot be <code>null</code>.
+    *
+    * @param strategy
+    *    the {@link Deflater} strategy.
+    *
+    * @return
+    *    the size of the compressed data, in bytes.
+    */
+   private static long deflatedSize(byte[] data, int strategy) {
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      try {
+         deflater.setStrategy(strategy);
+         deflater.setInput(data);
+         deflater.finish();
+         byte[] buffer = new byte[64 * 1024];
+         while (! deflater.finished()) {
+            deflater.deflate(buffer);
+         }
+         return deflater.getBytesWritten();
+      } finally {
+         deflater.end();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>SavingsProbe</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private SavingsProbe() {
+      // empty
+   }
+}
@@ -0,0 +1,155 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import org.apache.tools.ant.util.Watchdog;
+
+/**
+ * An <code>ExecuteWatchdog</code> that does not start a thread of its own.
+ * Instead, the deadlines of all watched processes are tracked by a single
+ * timer thread that is shared by all instances. When a deadline passes, only
+ * the expired process is killed; it is then reaped by the thread that waits
+ * for it. A deadline is cancelled as soon as the process ends in time, so
+ * the timer only holds the processes that are still running.
+ *
+ * <p>An instance can also be created without a time-out; it then never
+ * expires by itself, but the process can still be killed explicitly by
+ * calling {@link #timeoutOccured(Watchdog)}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class ScheduledWatchdog extends ExecuteWatchdog {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The timer that tracks the deadlines of all watched processes. Never
+    * <code>null</code>.
+    */
+   private static final ScheduledThreadPoolExecutor TIMER;
+
+   static {
+      TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "optipng-timeout");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      TIMER.setRemoveOnCancelPolicy(true);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>ScheduledWatchdog</code>.
+    *
+    * @param timeOut
+    *    the time-out in milliseconds, or 0 (or lower) if the process should
+    *    never be killed because of a time-out.
+    */
+   ScheduledWatchdog(long timeOut) {
+      super(1L); // the timer of the superclass is never started
+      _timeOut = timeOut;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The time-out in milliseconds, or 0 (or lower) if none.
+    */
+   private final long _timeOut;
+
+   /**
+    * The process being watched, or <code>null</code> if none.
+    */
+   private Process _process;
+
+   /**
+    * The pending deadline of the process, or <code>null</code> if none.
+    */
+   private ScheduledFuture<?> _deadline;
+
+   /**
+    * Flag that indicates if the process is currently being watched.
+    */
+   private volatile boolean _watching;
+
+   /**
+    * Flag that indicates if the process was killed.
+    */
+   private volatile boolean _killed;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   @Override
+   public synchronized void start(Process process) {
+      if (process == null) {
+         throw new NullPointerException("process is null.");
+      }
+      _process  = process;
+      _watching = true;
+      _killed   = false;
+      if (_timeOut > 0L) {
+         _deadline = TIMER.schedule(new Runnable() {
+            public void run() {
+               timeoutOccured(null);
+            }
+         }, _timeOut, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   @Override
+   public synchronized void stop() {
+      if (_deadline != null) {
+         _deadline.cancel(false);
+         _deadline = null;
+      }
+      _watching = false;
+      _process  = null;
+   }
+
+   @Override
+   public synchronized void timeoutOccured(Watchdog w) {
+      if (_watching && _process != null) {
+         try {
+            _process.exitValue();
+         } catch (IllegalThreadStateException e) {
+            _killed = true;
+            _process.destroy();
+         }
+      }
+      stop();
+   }
+
+   @Override
+   public synchronized void checkException() {
+      // nothing is ever caught
+   }
+
+   @Override
+   public boolean isWatching() {
+      return _watching;
+   }
+
+   @Override
+   public boolean killedProcess() {
+      return _killed;
+   }
+}
@@ -0,0 +1,148 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * A {@link DirectoryScanner} that does not collect the included files, but
+ * hands them to a queue one by one while it walks the directory tree,
+ * together with the file attributes that the walk read anyway. The
+ * include and exclude patterns and the selectors are applied to each file
+ * as it is found, and directories that cannot hold any included file are
+ * not entered. Since the queue is bounded, the memory use does not depend
+ * on the size of the tree, and the files found so far can be processed
+ * while the scan continues.
+ *
+ * <p>The scanner is configured like any other directory scanner, typically
+ * using {@link org.apache.tools.ant.types.AbstractFileSet#setupDirectoryScanner(org.apache.tools.ant.FileScanner,org.apache.tools.ant.Project)}.
+ * Only {@link #walk(BlockingQueue)} should be used to scan.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class StreamingScanner extends DirectoryScanner {
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>StreamingScanner</code>.
+    */
+   StreamingScanner() {
+      // empty
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Walks the directory tree below the base directory and puts each
+    * included file on the specified queue. This method blocks whenever the
+    * queue is full. Files and directories that cannot be read are ignored.
+    *
+    * @param queue
+    *    the queue to put the files on, cannot be <code>null</code>.
+    *
+    * @throws IOException
+    *    if the base directory cannot be walked.
+    *
+    * @throws InterruptedException
+    *    if the current thread is interrupted while waiting for room on the
+    *    queue.
+    */
+   void walk(final BlockingQueue<ScannedFile> queue) throws IOException, InterruptedException {
+
+      // Apply the same defaults as scan() does
+      synchronized (this) {
+         if (includes == null) {
+            includes = new String[] { SelectorUtils.DEEP_TREE_MATCH };
+         }
+         if (excludes == null) {
+            excludes = new String[0];
+         }
+      }
+
+      // The tokenized patterns that couldHoldIncluded(String) relies on are
+      // only prepared by isIncluded(String)
+      isIncluded("");
+
+      final Path base = getBasedir().toPath();
+      Set<FileVisitOption> options = isFollowSymlinks() ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+                                                        : EnumSet.noneOf(FileVisitOption.class);
+      final boolean[] interrupted = new boolean[1];
+      Files.walkFileTree(base, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+         @Override
+         public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            String name = base.relativize(dir).toString();
+            return (name.length() < 1 || couldHoldIncluded(name)) ? FileVisitResult.CONTINUE
+                                                                   : FileVisitResult.SKIP_SUBTREE;
+         }
+
+         @Override
+         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            String name = base.relativize(file).toString();
+            if (attrs.isRegularFile() && isIncluded(name) && ! isExcluded(name) && isSelected(name, file.toFile())) {
+               try {
+                  queue.put(new ScannedFile(name, attrs));
+               } catch (InterruptedException cause) {
+                  interrupted[0] = true;
+                  return FileVisitResult.TERMINATE;
+               }
+            }
+            return FileVisitResult.CONTINUE;
+         }
+
+         @Override
+         public FileVisitResult visitFileFailed(Path file, IOException cause) {
+            return FileVisitResult.CONTINUE;
+         }
+      });
+
+      if (interrupted[0]) {
+         throw new InterruptedException();
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * A file found by the scan.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   static final class ScannedFile extends Object {
+
+      ScannedFile(String name, BasicFileAttributes attributes) {
+         _name       = name;
+         _attributes = attributes;
+      }
+
+      /**
+       * The name of the file, relative to the base directory.
+       */
+      final String _name;
+
+      /**
+       * The attributes of the file, as read during the scan.
+       */
+      final BasicFileAttributes _attributes;
+   }
+}
@@ -0,0 +1,208 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+/**
+ * Model that determines the time-out for optimizing a single file. A flat
+ * model applies the same time-out to each file. An adaptive model scales the
+ * time-out with the cost of the file, i.e. the size of its raw image data
+ * (as read from the <code>IHDR</code> chunk) plus its size on disk, based on
+ * the throughput observed so far during the current execution:
+ *
+ * <blockquote><code>time-out = SAFETY_FACTOR * (mean + 3 * stddev) * cost</code></blockquote>
+ *
+ * <p>where <em>mean</em> and <em>stddev</em> are those of the observed time
+ * per cost unit. The result is kept within the configured bounds. Until
+ * enough files have been observed, the maximum is used.
+ *
+ * <p>Units of work that time out are observed as well, see
+ * {@link #observeTimeOut(long,long)}, so that a model that underestimates
+ * the time needed widens its time-outs instead of killing every
+ * subsequent file of the same kind.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class TimeOutModel extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The number of files that must be observed before the adaptive model
+    * is used.
+    */
+   private static final int MIN_SAMPLES = 4;
+
+   /**
+    * The factor by which the estimated duration is multiplied.
+    */
+   private static final double SAFETY_FACTOR = 2.0;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Estimates the cost of optimizing a file, in arbitrary units.
+    *
+    * @param size
+    *    the size of the file, in bytes.
+    *
+    * @param header
+    *    the header of the file, or <code>null</code> if unknown.
+    *
+    * @return
+    *    the estimated cost, at least 1.
+    */
+   static long cost(long size, PNGHeader header) {
+      // Without a header, assume the raw data is 4 times the file size
+      long raw = (header != null) ? header.getRawSize() : size * 4L;
+      return Math.max(1L, raw + size);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>TimeOutModel</code>.
+    *
+    * @param adaptive
+    *    <code>true</code> for an adaptive model, <code>false</code> for a
+    *    flat one.
+    *
+    * @param min
+    *    the minimum time-out in milliseconds, for an adaptive model.
+    *
+    * @param max
+    *    the maximum time-out in milliseconds, or 0 (or lower) if there is
+    *    no maximum; for a flat model this is the time-out for each file.
+    */
+   TimeOutModel(boolean adaptive, long min, long max) {
+      _adaptive = adaptive;
+      _min      = Math.max(0L, min);
+      _max      = Math.max(0L, max);
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * Flag that indicates if this model is adaptive.
+    */
+   private final boolean _adaptive;
+
+   /**
+    * The minimum time-out, in milliseconds.
+    */
+   private final long _min;
+
+   /**
+    * The maximum time-out, in milliseconds, or 0 if there is no maximum.
+    */
+   private final long _max;
+
+   /**
+    * The number of observations.
+    */
+   private int _count;
+
+   /**
+    * The mean of the observed time per cost unit.
+    */
+   private double _mean;
+
+   /**
+    * The sum of the squared differences from the mean, see
+    * {@link #observe(long,long)}.
+    */
+   private double _m2;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the time-out for a unit of work with the specified cost.
+    *
+    * @param cost
+    *    the estimated cost, see {@link #cost(long,PNGHeader)}.
+    *
+    * @return
+    *    the time-out in milliseconds, or 0 if no time-out should be
+    *    applied.
+    */
+   synchronized long timeOutFor(long cost) {
+      if (! _adaptive || _count < MIN_SAMPLES) {
+         return _max;
+      }
+
+      double stddev  = (_count > 1) ? Math.sqrt(_m2 / (_count - 1)) : 0.0;
+      double timeOut = SAFETY_FACTOR * (_mean + 3.0 * stddev) * cost;
+      long   result  = (long) Math.ceil(timeOut);
+      result = Math.max(_min, result);
+      return (_max > 0L) ? Math.min(_max, result) : result;
+   }
+
+   /**
+    * Records the duration of a successfully completed unit of work. Units
+    * that failed should not be recorded, since their duration says nothing
+    * about the throughput; for units that timed out, use
+    * {@link #observeTimeOut(long,long)} instead.
+    *
+    * @param cost
+    *    the estimated cost, see {@link #cost(long,PNGHeader)}.
+    *
+    * @param duration
+    *    the duration, in milliseconds.
+    */
+   synchronized void observe(long cost, long duration) {
+      if (! _adaptive || cost < 1L) {
+         return;
+      }
+      add((double) Math.max(1L, duration) / cost);
+   }
+
+   /**
+    * Records the duration of a unit of work that was killed because it
+    * timed out. Its actual duration is unknown, but at least the time it
+    * ran; this lower bound is recorded, scaled by the safety factor. Since
+    * the time-out already exceeded the estimate, this raises the time-outs
+    * for subsequent files, for each time-out again.
+    *
+    * @param cost
+    *    the estimated cost, see {@link #cost(long,PNGHeader)}.
+    *
+    * @param duration
+    *    the time the unit of work ran before it was killed, in
+    *    milliseconds.
+    */
+   synchronized void observeTimeOut(long cost, long duration) {
+      if (! _adaptive || cost < 1L) {
+         return;
+      }
+      add(SAFETY_FACTOR * Math.max(1L, duration) / cost);
+   }
+
+   /**
+    * Adds an observed time per cost unit to the mean and variance.
+    *
+    * @param rate
+    *    the observed time per cost unit.
+    */
+   private void add(double rate) {
+
+      // Welford's online algorithm for the mean and variance
+      double delta = rate - _mean;
+      _count++;
+      _mean += delta / _count;
+      _m2   += delta * (rate - _mean);
+   }
+}
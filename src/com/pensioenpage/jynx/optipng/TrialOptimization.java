@@ -0,0 +1,163 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.apache.tools.ant.Project.MSG_VERBOSE;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.join;
+import static com.pensioenpage.jynx.optipng.OptiPNGTask.quote;
+
+/**
+ * Optimization of a single file that reuses the compression parameters that
+ * won for the same image before, see {@link OptiPNGTask#setTrials(File)}.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class TrialOptimization extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * How much worse the compression ratio achieved with the parameters that
+    * won before may be than the recorded one, before all combinations are
+    * tried again: 0.2 percentage points.
+    */
+   private static final double TRIAL_TOLERANCE = 0.002;
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Optimizes a single file with OptiPNG, starting with the compression
+    * parameters that won for this image before, if these are known. If the
+    * result is not worse than the one recorded, it is kept. Otherwise all
+    * combinations of parameters are tried into a temporary file and the
+    * smaller of both results is kept. The winning parameters are recorded.
+    *
+    * @param result
+    *    the result for the file, used for logging, cannot be
+    *    <code>null</code>.
+    *
+    * @param inFile
+    *    the input file, cannot be <code>null</code>.
+    *
+    * @param outFile
+    *    the output file, cannot be <code>null</code>.
+    *
+    * @param execution
+    *    the settings for the current execution, cannot be <code>null</code>;
+    *    the trials must be set.
+    *
+    * @return
+    *    <code>null</code> on success, or the error output on failure (can be
+    *    an empty string).
+    */
+   static String optimize(FileResult result, File inFile, File outFile, Execution execution) {
+
+      OptiPNGOptimizer optimizer = (OptiPNGOptimizer) execution._optimizer;
+      TrialStore          trials = execution._trials;
+      String          inFileName = result.getFileName();
+      long                inSize = result.getInSize();
+      List<String>     arguments = execution._arguments;
+      String digest;
+      try {
+         digest = OptimizationCache.digest("", inFile);
+      } catch (IOException cause) {
+         return "Unable to read " + quote(inFile.getPath()) + ": " + cause.getMessage();
+      }
+
+      // First try only the parameters that won before
+      TrialStore.Trial trial = trials.find(inFileName, digest);
+      boolean    haveResult = false;
+      if (trial != null) {
+         long timeOut = execution.timeOutFor(result);
+         ExecuteWatchdog watchdog = (timeOut > 0L) ? new ScheduledWatchdog(timeOut) : null;
+         String error = FileProcessor.optimizeWithCommand(execution._project, optimizer, execution._command, optimizer.withTrialParameters(arguments, trial._parameters), inFile, outFile,
+                                            watchdog, new Buffer());
+         if (watchdog != null && watchdog.killedProcess()) {
+            result.timedOut();
+         }
+         long outSize = outFile.length();
+         if (error == null && outSize > 0L && inSize > 0L) {
+            if ((double) outSize / inSize <= trial.getRatio() + TRIAL_TOLERANCE) {
+               result.log("Optimized " + quote(inFileName) + " with the parameters that won before: " + join(trial._parameters) + '.', MSG_VERBOSE);
+               trials.record(inFileName, digest, inSize, outSize, trial._parameters);
+               return null;
+            }
+            result.log("Parameters that won before for " + quote(inFileName) + " give a worse result; trying all combinations.", MSG_VERBOSE);
+            haveResult = true;
+         }
+      }
+
+      // Try all combinations; if there is a result already, then do so into
+      // a temporary file next to the output file, to keep the smaller one
+      File temp = null;
+      try {
+         File target = outFile;
+         if (haveResult) {
+            try {
+               temp   = Copier.createTempFile(outFile);
+               target = temp;
+            } catch (IOException cause) {
+               result.log("Unable to create temporary file for " + quote(inFileName) + ", keeping the result of the parameters that won before.", MSG_VERBOSE);
+               return null;
+            }
+         }
+
+         long timeOut = execution.timeOutFor(result);
+         ExecuteWatchdog watchdog = (timeOut > 0L) ? new ScheduledWatchdog(timeOut) : null;
+         Buffer buffer = new Buffer();
+         String  error = FileProcessor.optimizeWithCommand(execution._project, optimizer, execution._command, arguments, inFile, target,
+                                             watchdog, buffer);
+         if (watchdog != null && watchdog.killedProcess()) {
+            result.timedOut();
+         }
+         long  outSize = target.length();
+         if (error != null || outSize < 1L) {
+            return haveResult ? null : error;
+         }
+
+         // Keep the smaller result
+         List<String> parameters = optimizer.parseTrialParameters(buffer.getOutString(), buffer.getErrString());
+         if (temp != null) {
+            if (outSize >= outFile.length()) {
+               trials.record(inFileName, digest, inSize, outFile.length(), trial._parameters);
+               return null;
+            }
+            try {
+               Copier.move(temp, outFile);
+            } catch (IOException cause) {
+               return "Unable to move " + quote(temp.getPath()) + " to " + quote(outFile.getPath()) + ": " + cause.getMessage();
+            }
+         }
+         if (parameters != null) {
+            trials.record(inFileName, digest, inSize, outSize, parameters);
+         }
+         return null;
+      } finally {
+         if (temp != null) {
+            temp.delete();
+         }
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>TrialOptimization</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private TrialOptimization() {
+      // empty
+   }
+}
@@ -0,0 +1,253 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent store of the compression parameters that won the trials for
+ * each image, e.g. <code>-zc9 -zm8 -zs0 -f5</code>, together with the
+ * compression ratio that was achieved with them. Entries are keyed by the
+ * SHA-256 digest of the input file contents and by the file name, so that
+ * the parameters are found both for identical images elsewhere in the tree
+ * and for a changed image at the same location, which is typically similar
+ * to the previous version.
+ *
+ * <p>The store is a text file, with one line per file:
+ * <blockquote><code><em>digest</em> <em>inSize</em> <em>outSize</em>
+ * <em>parameters</em> <em>name</em></code></blockquote>
+ *
+ * <p>where the parameters are separated by commas.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class TrialStore extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The character encoding used for the file: UTF-8.
+    */
+   private static final String ENCODING = "UTF-8";
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>TrialStore</code>, reading the entries from the
+    * specified file, if it exists.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @throws IllegalArgumentException
+    *    if <code>file == null</code>.
+    *
+    * @throws IOException
+    *    if the file exists but cannot be read.
+    */
+   TrialStore(File file) throws IllegalArgumentException, IOException {
+
+      // Check preconditions
+      if (file == null) {
+         throw new IllegalArgumentException("file == null");
+      }
+
+      _file     = file;
+      _byName   = new ConcurrentHashMap<String,Trial>();
+      _byDigest = new ConcurrentHashMap<String,Trial>();
+
+      // Read the existing entries, ignoring malformed lines
+      if (file.exists()) {
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               String[] parts = line.split(" ", 5);
+               if (parts.length == 5) {
+                  try {
+                     Trial trial = new Trial(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), Arrays.asList(parts[3].split(",")));
+                     _byName.put(parts[4], trial);
+                     _byDigest.put(parts[0], trial);
+                  } catch (NumberFormatException cause) {
+                     // ignore
+                  }
+               }
+            }
+         } finally {
+            reader.close();
+         }
+      }
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The file. Never <code>null</code>.
+    */
+   private final File _file;
+
+   /**
+    * The entries, keyed by file name. Never <code>null</code>.
+    */
+   private final Map<String,Trial> _byName;
+
+   /**
+    * The entries, keyed by the digest of the input file. Never
+    * <code>null</code>.
+    */
+   private final Map<String,Trial> _byDigest;
+
+   /**
+    * Flag that indicates if the entries changed since they were read.
+    */
+   private volatile boolean _modified;
+
+
+   //-------------------------------------------------------------------------
+   // Methods
+   //-------------------------------------------------------------------------
+
+   /**
+    * Finds the winning parameters for the specified file. An entry for the
+    * same contents is preferred over one for the same name.
+    *
+    * @param name
+    *    the name of the file, relative to the source directory, cannot be
+    *    <code>null</code>.
+    *
+    * @param digest
+    *    the digest of the contents of the file, cannot be
+    *    <code>null</code>.
+    *
+    * @return
+    *    the entry, or <code>null</code> if there is none.
+    */
+   Trial find(String name, String digest) {
+      Trial trial = _byDigest.get(digest);
+      return (trial != null) ? trial : _byName.get(name);
+   }
+
+   /**
+    * Records the winning parameters for the specified file.
+    *
+    * @param name
+    *    the name of the file, relative to the source directory, cannot be
+    *    <code>null</code>.
+    *
+    * @param digest
+    *    the digest of the contents of the input file, cannot be
+    *    <code>null</code>.
+    *
+    * @param inSize
+    *    the size of the input file, in bytes.
+    *
+    * @param outSize
+    *    the size of the optimized file, in bytes.
+    *
+    * @param parameters
+    *    the winning parameters, cannot be <code>null</code>.
+    */
+   void record(String name, String digest, long inSize, long outSize, List<String> parameters) {
+      Trial trial = new Trial(digest, inSize, outSize, new ArrayList<String>(parameters));
+      _byName.put(name, trial);
+      _byDigest.put(digest, trial);
+      _modified = true;
+   }
+
+   /**
+    * Writes the entries to the file, if they were modified. The entries are
+    * written sorted by name, to a temporary file that then replaces the
+    * file.
+    *
+    * @throws IOException
+    *    in case of an I/O error.
+    */
+   void save() throws IOException {
+      if (! _modified) {
+         return;
+      }
+
+      List<String> lines = new ArrayList<String>(_byName.size());
+      for (Map.Entry<String,Trial> e : new TreeMap<String,Trial>(_byName).entrySet()) {
+         Trial trial = e.getValue();
+         StringBuilder parameters = new StringBuilder();
+         for (String parameter : trial._parameters) {
+            parameters.append(parameters.length() > 0 ? "," : "").append(parameter);
+         }
+         lines.add(trial._digest + ' ' + trial._inSize + ' ' + trial._outSize + ' ' + parameters + ' ' + e.getKey());
+      }
+      Copier.writeLines(_file, lines);
+      _modified = false;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Inner classes
+   //-------------------------------------------------------------------------
+
+   /**
+    * The winning parameters for a single file.
+    *
+    * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+    */
+   static final class Trial extends Object {
+
+      Trial(String digest, long inSize, long outSize, List<String> parameters) {
+         _digest     = digest;
+         _inSize     = inSize;
+         _outSize    = outSize;
+         _parameters = Collections.unmodifiableList(parameters);
+      }
+
+      /**
+       * The SHA-256 digest of the input file contents.
+       */
+      final String _digest;
+
+      /**
+       * The size of the input file, in bytes.
+       */
+      final long _inSize;
+
+      /**
+       * The size of the optimized file, in bytes.
+       */
+      final long _outSize;
+
+      /**
+       * The winning parameters, never <code>null</code>.
+       */
+      final List<String> _parameters;
+
+      /**
+       * Returns the compression ratio achieved with the parameters.
+       *
+       * @return
+       *    the size of the optimized file divided by the size of the input
+       *    file.
+       */
+      double getRatio() {
+         return (_inSize > 0L) ? (double) _outSize / _inSize : 1.0;
+      }
+   }
+}
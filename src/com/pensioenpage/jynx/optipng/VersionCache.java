@@ -0,0 +1,238 @@
+// Copyright 2007-2009, PensioenPage B.V.
+package com.pensioenpage.jynx.optipng;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tools.ant.taskdefs.condition.Os;
+
+/**
+ * Cache of the versions of optimizer commands, so that the command does not
+ * have to be executed again for each task in a build. Entries are keyed by
+ * the name of the optimizer and the absolute path, modification time and
+ * size of the executable, so that an entry is not found anymore once the
+ * executable changes.
+ *
+ * <p>The entries are kept in memory for the lifetime of the JVM and,
+ * optionally, in a file <code>versions</code> in a directory, so that they
+ * survive across builds. The file has one line per entry, with the key and
+ * the version separated by a tab character.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author <a href="mailto:ernst@pensioenpage.com">Ernst de Haan</a>
+ */
+final class VersionCache extends Object {
+
+   //-------------------------------------------------------------------------
+   // Class fields
+   //-------------------------------------------------------------------------
+
+   /**
+    * The character encoding used for the file: UTF-8.
+    */
+   private static final String ENCODING = "UTF-8";
+
+   /**
+    * The name of the file within the directory: <code>"versions"</code>.
+    */
+   private static final String FILE_NAME = "versions";
+
+   /**
+    * The entries known in this JVM. Never <code>null</code>.
+    */
+   private static final Map<String,String> ENTRIES = new ConcurrentHashMap<String,String>();
+
+
+   //-------------------------------------------------------------------------
+   // Class functions
+   //-------------------------------------------------------------------------
+
+   /**
+    * Determines the executable file for the specified command, by searching
+    * the <code>PATH</code> if the command does not contain a directory.
+    *
+    * @param command
+    *    the command, cannot be <code>null</code>.
+    *
+    * @return
+    *    the executable file, or <code>null</code> if it cannot be found.
+    */
+   static File resolve(String command) {
+      File file = new File(command);
+      if (file.getParent() != null) {
+         return file.isFile() ? file.getAbsoluteFile() : null;
+      }
+
+      String path = System.getenv("PATH");
+      if (path == null) {
+         return null;
+      }
+      boolean windows = Os.isFamily(Os.FAMILY_WINDOWS);
+      for (String dir : path.split(File.pathSeparator)) {
+         if (dir.length() < 1) {
+            continue;
+         }
+         File candidate = new File(dir, command);
+         if (candidate.isFile()) {
+            return candidate.getAbsoluteFile();
+         } else if (windows && (candidate = new File(dir, command + ".exe")).isFile()) {
+            return candidate.getAbsoluteFile();
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Computes the key for the specified optimizer and executable.
+    *
+    * @param optimizer
+    *    the optimizer, cannot be <code>null</code>.
+    *
+    * @param executable
+    *    the executable file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the key, never <code>null</code>.
+    */
+   static String key(CommandOptimizer optimizer, File executable) {
+      return optimizer.getName() + ' ' + executable.lastModified() + ' ' + executable.length() + ' ' + executable.getPath();
+   }
+
+   /**
+    * Looks up the version for the specified key, first in memory and then
+    * in the file in the specified directory.
+    *
+    * @param key
+    *    the key, see {@link #key(CommandOptimizer,File)}, cannot be
+    *    <code>null</code>.
+    *
+    * @param dir
+    *    the directory holding the file, or <code>null</code> if the
+    *    versions are only kept in memory.
+    *
+    * @return
+    *    the version, or <code>null</code> if it is not known.
+    */
+   static String get(String key, File dir) {
+      String version = ENTRIES.get(key);
+      if (version == null && dir != null) {
+         try {
+            version = read(new File(dir, FILE_NAME)).get(key);
+         } catch (IOException cause) {
+            version = null;
+         }
+         if (version != null) {
+            ENTRIES.put(key, version);
+         }
+      }
+      return version;
+   }
+
+   /**
+    * Stores the version for the specified key, in memory and in the file in
+    * the specified directory.
+    *
+    * @param key
+    *    the key, see {@link #key(CommandOptimizer,File)}, cannot be
+    *    <code>null</code>.
+    *
+    * @param version
+    *    the version, cannot be <code>null</code>.
+    *
+    * @param dir
+    *    the directory holding the file, or <code>null</code> if the
+    *    versions are only kept in memory.
+    *
+    * @throws IOException
+    *    if the file cannot be written.
+    */
+   static void put(String key, String version, File dir) throws IOException {
+      ENTRIES.put(key, version);
+      if (dir == null) {
+         return;
+      }
+
+      // Make sure the directory exists
+      if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+         throw new IOException("Unable to create directory \"" + dir + "\".");
+      }
+
+      // Rewrite the file, to a temporary file that then replaces it; entries
+      // for earlier versions of the same executable are dropped
+      File file = new File(dir, FILE_NAME);
+      synchronized (VersionCache.class) {
+         Map<String,String> entries = read(file);
+         String[] parts = key.split(" ", 4);
+         for (Iterator<String> i = entries.keySet().iterator(); i.hasNext(); ) {
+            String[] other = i.next().split(" ", 4);
+            if (other.length == 4 && other[0].equals(parts[0]) && other[3].equals(parts[3])) {
+               i.remove();
+            }
+         }
+         entries.put(key, version);
+
+         List<String> lines = new ArrayList<String>(entries.size());
+         for (Map.Entry<String,String> e : entries.entrySet()) {
+            lines.add(e.getKey() + '\t' + e.getValue());
+         }
+         Copier.writeLines(file, lines);
+      }
+   }
+
+   /**
+    * Reads the entries from the specified file.
+    *
+    * @param file
+    *    the file, cannot be <code>null</code>.
+    *
+    * @return
+    *    the entries, never <code>null</code>; empty if the file does not
+    *    exist.
+    *
+    * @throws IOException
+    *    if the file exists but cannot be read.
+    */
+   private static Map<String,String> read(File file) throws IOException {
+      Map<String,String> entries = new TreeMap<String,String>();
+      if (! file.exists()) {
+         return entries;
+      }
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int index = line.lastIndexOf('\t');
+            if (index > 0) {
+               entries.put(line.substring(0, index), line.substring(index + 1));
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return entries;
+   }
+
+
+   //-------------------------------------------------------------------------
+   // Constructors
+   //-------------------------------------------------------------------------
+
+   /**
+    * Constructs a new <code>VersionCache</code>. This constructor is private
+    * since no instances of this class should be created.
+    */
+   private VersionCache() {
+      // empty
+   }
+}